@@ -26,13 +26,16 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
+import android.location.Location;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.Slog;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.BackgroundThread;
@@ -47,12 +50,21 @@ import mokee.weather.IRequestInfoListener;
 import mokee.weather.IWeatherServiceProviderChangeListener;
 import mokee.weather.RequestInfo;
 import mokee.weather.WeatherInfo;
+import mokee.weather.WeatherLocation;
 import mokee.weatherservice.IWeatherProviderService;
 import mokee.weatherservice.IWeatherProviderServiceClient;
 import mokee.weatherservice.ServiceRequestResult;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 
 public class MKWeatherManagerService extends MKSystemService {
 
@@ -66,6 +78,103 @@ public class MKWeatherManagerService extends MKSystemService {
             = new RemoteCallbackList<>();
     private volatile boolean mReconnectedDuePkgModified = false;
 
+    // Identical requests submitted within this time attach to the one sent to the provider
+    private static final long IN_FLIGHT_TIMEOUT_MILLIS = 60 * 1000;
+    // Geo locations are rounded to 1/100 of a degree (about 1km) to detect identical requests
+    private static final int LOCATION_KEY_SCALE = 100;
+
+    /**
+     * A weather update request sent to the provider, and all the requests waiting for its
+     * result.
+     */
+    private static final class InFlightRequest {
+        final String key;
+        final RequestInfo providerRequest;
+        final long submitTime;
+        final List<RequestInfo> requests = new ArrayList<>();
+
+        InFlightRequest(String key, RequestInfo providerRequest, long submitTime) {
+            this.key = key;
+            this.providerRequest = providerRequest;
+            this.submitTime = submitTime;
+        }
+    }
+
+    // Weather update requests waiting for the provider, by request key and by the request that
+    // was sent to the provider. Guarded by mMutex.
+    private final Map<String, InFlightRequest> mInFlightByKey = new HashMap<>();
+    private final Map<RequestInfo, InFlightRequest> mInFlightByRequest = new HashMap<>();
+    private long mInFlightHits;
+    private long mInFlightMisses;
+
+    private static final int RESULT_CACHE_SIZE = 16;
+
+    /**
+     * A weather update result, and whether it was written to the content provider.
+     */
+    private static final class CachedResult {
+        final WeatherInfo weatherInfo;
+        final long time;
+        boolean persisted;
+
+        CachedResult(WeatherInfo weatherInfo, long time, boolean persisted) {
+            this.weatherInfo = weatherInfo;
+            this.time = time;
+            this.persisted = persisted;
+        }
+    }
+
+    // Recent weather update results by request key. Guarded by mMutex.
+    private final LruCache<String, CachedResult> mResultCache =
+            new LruCache<>(RESULT_CACHE_SIZE);
+    private final long mResultCacheTtlMillis;
+    private long mResultCacheHits;
+    private long mResultCacheMisses;
+
+    // Providers built against an older SDK drop batch requests, since they don't know the
+    // transaction. Batch requests they don't answer within this time are failed.
+    private static final long BATCH_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * Fails a batch request the provider didn't answer in time.
+     */
+    private final class BatchTimeout implements Runnable {
+        final RequestInfo info;
+
+        BatchTimeout(RequestInfo info) {
+            this.info = info;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mMutex) {
+                if (mPendingBatches.get(info) != this) {
+                    return;
+                }
+                mPendingBatches.remove(info);
+                mBatchTimeouts++;
+            }
+            Slog.w(TAG, "Weather provider didn't answer batch request " + info.hashCode());
+            notifyBatchFailed(info);
+            if (mIsWeatherProviderServiceBound) {
+                try {
+                    mWeatherProviderService.cancelRequest(info.hashCode());
+                } catch (RemoteException e) {
+                }
+            }
+        }
+    }
+
+    // Batch requests sent to the provider, and the timeouts failing them. Guarded by mMutex.
+    private final Map<RequestInfo, BatchTimeout> mPendingBatches = new HashMap<>();
+    private long mBatchTimeouts;
+
+    // The rows last written to the content provider, so that unchanged weather isn't written
+    // again. Guarded by mMutex.
+    private ContentValues[] mPersistedRows;
+    private long mPersistedWrites;
+    private long mPersistedSkips;
+
     private final IWeatherProviderServiceClient mServiceClient
             = new IWeatherProviderServiceClient.Stub() {
         @Override
@@ -89,6 +198,7 @@ public class MKWeatherManagerService extends MKSystemService {
                 switch (requestType) {
                     case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
                     case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                        final List<RequestInfo> requests = takeInFlightRequestsLocked(requestInfo);
                         WeatherInfo weatherInfo = null;
                         if (status == MKWeatherManager.RequestStatus.COMPLETED) {
                             weatherInfo = (result != null) ? result.getWeatherInfo() : null;
@@ -98,20 +208,58 @@ public class MKWeatherManagerService extends MKSystemService {
                                 //was marked as completed
                                 status = MKWeatherManager.RequestStatus.FAILED;
                             } else {
-                                if (!requestInfo.isQueryOnlyWeatherRequest()) {
+                                boolean persisted = false;
+                                if (!isQueryOnly(requestInfo, requests)) {
                                     final long identity = Binder.clearCallingIdentity();
                                     try {
-                                        updateWeatherInfoLocked(weatherInfo);
+                                        persisted = updateWeatherInfoLocked(weatherInfo);
                                     } finally {
                                         Binder.restoreCallingIdentity(identity);
                                     }
                                 }
+                                if (mResultCacheTtlMillis > 0) {
+                                    mResultCache.put(getRequestKey(requestInfo),
+                                            new CachedResult(weatherInfo,
+                                                    SystemClock.elapsedRealtime(), persisted));
+                                }
+                            }
+                        }
+                        for (RequestInfo request : requests) {
+                            final IRequestInfoListener requestListener =
+                                    request.getRequestListener();
+                            if (isValidListener(requestListener)) {
+                                try {
+                                    requestListener.onWeatherRequestCompleted(request, status,
+                                            weatherInfo);
+                                } catch (RemoteException e) {
+                                }
+                            }
+                        }
+                        break;
+                    case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                        final BatchTimeout timeout = mPendingBatches.remove(requestInfo);
+                        if (timeout == null) {
+                            // Already failed by its timeout, or cancelled
+                            break;
+                        }
+                        BackgroundThread.getHandler().removeCallbacks(timeout);
+                        List<WeatherInfo> weatherInfos = null;
+                        if (status == MKWeatherManager.RequestStatus.COMPLETED) {
+                            weatherInfos = (result != null) ? result.getWeatherInfoList() : null;
+                            if (weatherInfos == null || weatherInfos.size()
+                                    != requestInfo.getWeatherLocations().size()) {
+                                weatherInfos = null;
+                                status = MKWeatherManager.RequestStatus.FAILED;
+                            } else {
+                                // Batch results are never persisted, the content provider only
+                                // holds the weather of a single location
+                                cacheBatchResultsLocked(requestInfo, weatherInfos);
                             }
                         }
                         if (isValidListener(listener)) {
                             try {
-                                listener.onWeatherRequestCompleted(requestInfo, status,
-                                        weatherInfo);
+                                listener.onWeatherBatchRequestCompleted(requestInfo, status,
+                                        weatherInfos);
                             } catch (RemoteException e) {
                             }
                         }
@@ -203,6 +351,28 @@ public class MKWeatherManagerService extends MKSystemService {
             enforcePermission();
             processCancelRequest(requestId);
         }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("Weather Manager Service State:");
+            pw.println(" Provider bound: " + mIsWeatherProviderServiceBound);
+            synchronized (mMutex) {
+                pw.println(" In-flight requests: " + mInFlightByRequest.size());
+                pw.println("  Attached to a request in flight: " + mInFlightHits);
+                pw.println("  Sent to the provider: " + mInFlightMisses);
+                pw.println(" Result cache: " + mResultCache.size() + " of " + RESULT_CACHE_SIZE
+                        + ", fresh for " + mResultCacheTtlMillis + "ms");
+                pw.println("  Hits: " + mResultCacheHits);
+                pw.println("  Misses: " + mResultCacheMisses);
+                pw.println(" Pending batch requests: " + mPendingBatches.size());
+                pw.println("  Timed out: " + mBatchTimeouts);
+                pw.println(" Content provider updates: " + mPersistedWrites);
+                pw.println("  Skipped as unchanged: " + mPersistedSkips);
+            }
+        }
     };
 
     private String getComponentLabel(ComponentName componentName) {
@@ -219,6 +389,8 @@ public class MKWeatherManagerService extends MKSystemService {
     public MKWeatherManagerService(Context context) {
         super(context);
         mContext = context;
+        mResultCacheTtlMillis = context.getResources().getInteger(
+                org.mokee.platform.internal.R.integer.config_weatherResultCacheTtlMillis);
     }
 
     @Override
@@ -274,13 +446,245 @@ public class MKWeatherManagerService extends MKSystemService {
     }
 
     private synchronized void processWeatherUpdateRequest(RequestInfo info) {
+        if (info.getRequestType() == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ) {
+            processWeatherBatchUpdateRequest(info);
+            return;
+        }
+
+        final String key = getRequestKey(info);
+        final long now = SystemClock.elapsedRealtime();
+        if (completeFromCache(info, key, now)) return;
         if (!canProcessWeatherUpdateRequest(info)) return;
+
+        InFlightRequest inFlight;
+        synchronized (mMutex) {
+            inFlight = mInFlightByKey.get(key);
+            if (inFlight != null && now - inFlight.submitTime < IN_FLIGHT_TIMEOUT_MILLIS) {
+                // The provider is already working on it, wait for its result
+                inFlight.requests.add(info);
+                mInFlightHits++;
+                return;
+            }
+            // A request that timed out stays tracked until it completes, but isn't joined
+            inFlight = new InFlightRequest(key, info, now);
+            inFlight.requests.add(info);
+            mInFlightByKey.put(key, inFlight);
+            mInFlightByRequest.put(info, inFlight);
+            mInFlightMisses++;
+        }
         try {
             mWeatherProviderService.processWeatherUpdateRequest(info);
         } catch (RemoteException e) {
+            synchronized (mMutex) {
+                removeInFlightLocked(inFlight);
+            }
+        }
+    }
+
+    /**
+     * Batch requests are sent to the provider as they are, unless the cache holds a fresh
+     * result for every one of their locations. They don't join or get joined by other requests.
+     */
+    private void processWeatherBatchUpdateRequest(RequestInfo info) {
+        if (completeBatchFromCache(info, SystemClock.elapsedRealtime())) return;
+        if (!mIsWeatherProviderServiceBound) {
+            notifyBatchFailed(info);
+            return;
+        }
+        final BatchTimeout timeout = new BatchTimeout(info);
+        synchronized (mMutex) {
+            mPendingBatches.put(info, timeout);
+        }
+        BackgroundThread.getHandler().postDelayed(timeout, BATCH_TIMEOUT_MILLIS);
+        try {
+            mWeatherProviderService.processWeatherBatchUpdateRequest(info);
+        } catch (RemoteException e) {
+            synchronized (mMutex) {
+                mPendingBatches.remove(info);
+            }
+            BackgroundThread.getHandler().removeCallbacks(timeout);
+            notifyBatchFailed(info);
         }
     }
 
+    private void notifyBatchFailed(RequestInfo info) {
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onWeatherBatchRequestCompleted(info,
+                        MKWeatherManager.RequestStatus.FAILED, null);
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
+    private boolean completeBatchFromCache(RequestInfo info, long now) {
+        if (mResultCacheTtlMillis <= 0 || info.isForceRefreshRequest()) {
+            return false;
+        }
+
+        final List<WeatherLocation> weatherLocations = info.getWeatherLocations();
+        final List<WeatherInfo> weatherInfos = new ArrayList<>(weatherLocations.size());
+        synchronized (mMutex) {
+            for (WeatherLocation weatherLocation : weatherLocations) {
+                final CachedResult cached = mResultCache.get(
+                        getRequestKey(weatherLocation, info.getTemperatureUnit()));
+                if (cached == null || now - cached.time >= mResultCacheTtlMillis) {
+                    mResultCacheMisses++;
+                    return false;
+                }
+                weatherInfos.add(cached.weatherInfo);
+            }
+            mResultCacheHits++;
+        }
+
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onWeatherBatchRequestCompleted(info,
+                        MKWeatherManager.RequestStatus.COMPLETED, weatherInfos);
+            } catch (RemoteException e) {
+            }
+        }
+        return true;
+    }
+
+    private void cacheBatchResultsLocked(RequestInfo info, List<WeatherInfo> weatherInfos) {
+        if (mResultCacheTtlMillis <= 0) {
+            return;
+        }
+        final List<WeatherLocation> weatherLocations = info.getWeatherLocations();
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < weatherInfos.size() && i < weatherLocations.size(); i++) {
+            final WeatherInfo weatherInfo = weatherInfos.get(i);
+            if (weatherInfo != null) {
+                mResultCache.put(getRequestKey(weatherLocations.get(i),
+                        info.getTemperatureUnit()), new CachedResult(weatherInfo, now, false));
+            }
+        }
+    }
+
+    /**
+     * Completes a weather update request with a cached result, if there is one that is still
+     * fresh and the request doesn't force a refresh. This doesn't need the provider at all.
+     * @return whether the request was completed
+     */
+    private boolean completeFromCache(RequestInfo info, String key, long now) {
+        if (mResultCacheTtlMillis <= 0) {
+            return false;
+        }
+
+        final WeatherInfo weatherInfo;
+        synchronized (mMutex) {
+            final CachedResult cached = !info.isForceRefreshRequest()
+                    ? mResultCache.get(key) : null;
+            if (cached == null || now - cached.time >= mResultCacheTtlMillis) {
+                mResultCacheMisses++;
+                return false;
+            }
+            mResultCacheHits++;
+            weatherInfo = cached.weatherInfo;
+            if (!cached.persisted && !info.isQueryOnlyWeatherRequest()) {
+                // The result was fetched by a query only request
+                final long identity = Binder.clearCallingIdentity();
+                try {
+                    cached.persisted = updateWeatherInfoLocked(weatherInfo);
+                } finally {
+                    Binder.restoreCallingIdentity(identity);
+                }
+            }
+        }
+
+        final IRequestInfoListener listener = info.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onWeatherRequestCompleted(info,
+                        MKWeatherManager.RequestStatus.COMPLETED, weatherInfo);
+            } catch (RemoteException e) {
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the key identical weather update requests share: the location, rounded for geo
+     * locations, and the temperature unit.
+     */
+    private static String getRequestKey(RequestInfo info) {
+        StringBuilder builder = new StringBuilder();
+        switch (info.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                final Location location = info.getLocation();
+                builder.append("geo:")
+                        .append(Math.round(location.getLatitude() * LOCATION_KEY_SCALE))
+                        .append(',')
+                        .append(Math.round(location.getLongitude() * LOCATION_KEY_SCALE));
+                break;
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                appendWeatherLocationKey(builder, info.getWeatherLocation());
+                break;
+        }
+        return builder.append(':').append(info.getTemperatureUnit()).toString();
+    }
+
+    /**
+     * Builds the key of a weather location request, for a location of a batch request.
+     */
+    private static String getRequestKey(WeatherLocation weatherLocation, int tempUnit) {
+        StringBuilder builder = new StringBuilder();
+        appendWeatherLocationKey(builder, weatherLocation);
+        return builder.append(':').append(tempUnit).toString();
+    }
+
+    private static void appendWeatherLocationKey(StringBuilder builder,
+            WeatherLocation weatherLocation) {
+        // WeatherLocation.equals() compares a random key, so compare the fields instead
+        builder.append("city:")
+                .append(normalize(weatherLocation.getCityId())).append('|')
+                .append(normalize(weatherLocation.getCity())).append('|')
+                .append(normalize(weatherLocation.getState())).append('|')
+                .append(normalize(weatherLocation.getPostalCode())).append('|')
+                .append(normalize(weatherLocation.getCountryId())).append('|')
+                .append(normalize(weatherLocation.getCountry()));
+    }
+
+    private static String normalize(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : "";
+    }
+
+    /**
+     * Stops tracking the request sent to the provider as {@code requestInfo}.
+     * @return the requests waiting for its result, or just {@code requestInfo} if it wasn't
+     * tracked
+     */
+    private List<RequestInfo> takeInFlightRequestsLocked(RequestInfo requestInfo) {
+        final InFlightRequest inFlight = mInFlightByRequest.get(requestInfo);
+        if (inFlight == null) {
+            return Collections.singletonList(requestInfo);
+        }
+        removeInFlightLocked(inFlight);
+        return inFlight.requests;
+    }
+
+    private void removeInFlightLocked(InFlightRequest inFlight) {
+        mInFlightByRequest.remove(inFlight.providerRequest);
+        if (mInFlightByKey.get(inFlight.key) == inFlight) {
+            mInFlightByKey.remove(inFlight.key);
+        }
+    }
+
+    private static boolean isQueryOnly(RequestInfo requestInfo, List<RequestInfo> requests) {
+        if (!requestInfo.isQueryOnlyWeatherRequest()) {
+            return false;
+        }
+        for (RequestInfo request : requests) {
+            if (!request.isQueryOnlyWeatherRequest()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void processCityNameLookupRequest(RequestInfo info) {
         if (!mIsWeatherProviderServiceBound) {
             final IRequestInfoListener listener = info.getRequestListener();
@@ -300,6 +704,29 @@ public class MKWeatherManagerService extends MKSystemService {
     }
 
     private void processCancelRequest(int requestId) {
+        synchronized (mMutex) {
+            for (Iterator<BatchTimeout> it = mPendingBatches.values().iterator();
+                    it.hasNext(); ) {
+                final BatchTimeout timeout = it.next();
+                if (timeout.info.hashCode() == requestId) {
+                    it.remove();
+                    BackgroundThread.getHandler().removeCallbacks(timeout);
+                    break;
+                }
+            }
+            for (InFlightRequest inFlight : mInFlightByRequest.values()) {
+                if (!removeRequest(inFlight.requests, requestId)) {
+                    continue;
+                }
+                if (!inFlight.requests.isEmpty()) {
+                    // Others are still waiting for the result
+                    return;
+                }
+                removeInFlightLocked(inFlight);
+                requestId = inFlight.providerRequest.hashCode();
+                break;
+            }
+        }
         if (mIsWeatherProviderServiceBound) {
             try {
                 mWeatherProviderService.cancelRequest(requestId);
@@ -308,6 +735,36 @@ public class MKWeatherManagerService extends MKSystemService {
         }
     }
 
+    private static boolean removeRequest(List<RequestInfo> requests, int requestId) {
+        for (Iterator<RequestInfo> it = requests.iterator(); it.hasNext(); ) {
+            if (it.next().hashCode() == requestId) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearProviderState() {
+        final List<RequestInfo> batches;
+        synchronized (mMutex) {
+            // Nobody will answer the pending batch requests anymore
+            batches = new ArrayList<>(mPendingBatches.keySet());
+            for (BatchTimeout timeout : mPendingBatches.values()) {
+                BackgroundThread.getHandler().removeCallbacks(timeout);
+            }
+            mPendingBatches.clear();
+            mInFlightByKey.clear();
+            mInFlightByRequest.clear();
+            // Another provider may report different data
+            mResultCache.evictAll();
+            mPersistedRows = null;
+        }
+        for (RequestInfo info : batches) {
+            notifyBatchFailed(info);
+        }
+    }
+
     private ServiceConnection mWeatherServiceProviderConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -327,6 +784,8 @@ public class MKWeatherManagerService extends MKSystemService {
         public void onServiceDisconnected(ComponentName name) {
             mWeatherProviderService = null;
             mIsWeatherProviderServiceBound = false;
+            // The provider won't report back on requests it was working on
+            clearProviderState();
             Slog.d(TAG, "Connection with " + name.flattenToString() + " has been closed");
         }
     };
@@ -375,15 +834,68 @@ public class MKWeatherManagerService extends MKSystemService {
             contentValuesList.add(contentValues);
         }
 
+        final ContentValues[] rows = contentValuesList.toArray(new ContentValues[0]);
+        if (isSameWeather(rows, mPersistedRows, mResultCacheTtlMillis)) {
+            // Nothing to write, and no reason for observers to reload
+            mPersistedSkips++;
+            return true;
+        }
         if (size != getContext().getContentResolver().bulkInsert(
-                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI,
-                contentValuesList.toArray(new ContentValues[0]))) {
+                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, rows)) {
             Slog.w(TAG, "Failed to update the weather content provider");
+            mPersistedRows = null;
             return false;
         }
+        mPersistedRows = rows;
+        mPersistedWrites++;
         return true;
     }
 
+    /**
+     * Compares weather rows to the ones last written. Providers stamp every reading with the
+     * time it was built, so a new reading whose only change is its timestamp counts as the
+     * same weather, as long as the written one is younger than maxAgeMillis. Past that, the
+     * timestamp is written again so that readers can tell how old the data is.
+     * @param maxAgeMillis How long the written timestamp may lag behind, not positive to
+     *     write every new timestamp
+     */
+    /* package */ static boolean isSameWeather(ContentValues[] rows,
+            ContentValues[] persistedRows, long maxAgeMillis) {
+        if (persistedRows == null || rows.length != persistedRows.length) {
+            return false;
+        }
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].size() != persistedRows[i].size()) {
+                return false;
+            }
+            for (String column : rows[i].keySet()) {
+                final Object value = rows[i].get(column);
+                final Object persistedValue = persistedRows[i].get(column);
+                if (WeatherColumns.CURRENT_TIMESTAMP.equals(column)) {
+                    if (!isFreshTimestamp(value, persistedValue, maxAgeMillis)) {
+                        return false;
+                    }
+                } else if (!Objects.equals(value, persistedValue)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFreshTimestamp(Object timestamp, Object persistedTimestamp,
+            long maxAgeMillis) {
+        if (Objects.equals(timestamp, persistedTimestamp)) {
+            return true;
+        }
+        if (maxAgeMillis <= 0 || !(timestamp instanceof Long)
+                || !(persistedTimestamp instanceof Long)) {
+            return false;
+        }
+        final long age = (Long) timestamp - (Long) persistedTimestamp;
+        return age >= 0 && age < maxAgeMillis;
+    }
+
     private void registerPackageMonitor() {
         PackageMonitor monitor = new PackageMonitor() {
             @Override
@@ -513,6 +1025,7 @@ public class MKWeatherManagerService extends MKSystemService {
 
             getContext().unbindService(mWeatherServiceProviderConnection);
             mIsWeatherProviderServiceBound = false;
+            clearProviderState();
         }
     }
 }
@@ -26,7 +26,11 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Message;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.util.ArraySet;
+import android.util.AtomicFile;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.policy.IKeyguardService;
 import mokee.providers.MKSettings;
 import org.xmlpull.v1.XmlPullParser;
@@ -40,13 +44,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.ParceledListSlice;
 import android.content.res.XmlResourceParser;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.IBinder;
 import android.text.TextUtils;
 import android.util.Log;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 
 import com.android.server.SystemService;
@@ -55,14 +63,28 @@ import mokee.app.MKContextConstants;
 import mokee.app.Profile;
 import mokee.app.ProfileGroup;
 import mokee.app.ProfileManager;
+import mokee.app.ProfileSummary;
+import mokee.app.IProfileChangeListener;
 import mokee.app.IProfileManager;
 
 import java.util.Collection;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -84,12 +106,33 @@ public class ProfileManagerService extends MKSystemService {
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
 
-    private Map<UUID, Profile> mProfiles;
+    // How long to wait after a change before persisting, so bursts of changes are written once
+    private static final long PERSIST_DELAY_MILLIS = 1000;
+
+    // Guards mProfiles, mProfileNames, mPendingProfiles and mGroups, as well as changes to the
+    // profiles and groups they hold, which binder threads read and change concurrently
+    private final Object mLock = new Object();
+
+    private final Map<UUID, Profile> mProfiles = new HashMap<UUID, Profile>();
 
     // Match UUIDs and names, used for reverse compatibility
-    private Map<String, UUID> mProfileNames;
+    private final Map<String, UUID> mProfileNames = new HashMap<String, UUID>();
+
+    // Profiles read from the binary store which haven't been accessed yet; profiles move to
+    // mProfiles once decoded. Profiles which can't be decoded stay here, so that saving
+    // doesn't drop them.
+    private final Map<UUID, ProfileStore.Entry> mPendingProfiles =
+            new HashMap<UUID, ProfileStore.Entry>();
+    private final Set<UUID> mUndecodableProfiles = new ArraySet<UUID>();
 
-    private Map<UUID, NotificationGroup> mGroups;
+    private final Map<UUID, NotificationGroup> mGroups = new HashMap<UUID, NotificationGroup>();
+
+    // Package name to the notification group containing it, derived from mGroups. Replaced
+    // as a whole whenever the groups change, so lookups never see a partial update.
+    private volatile Map<String, NotificationGroup> mGroupsByPackage = Collections.emptyMap();
+
+    private final RemoteCallbackList<IProfileChangeListener> mChangeListeners =
+            new RemoteCallbackList<>();
 
     private Profile mActiveProfile;
 
@@ -100,11 +143,22 @@ public class ProfileManagerService extends MKSystemService {
 
     private Context mContext;
     private Handler mHandler;
-    private boolean mDirty;
+    private Handler mTriggerHandler;
+    private volatile boolean mDirty;
+    private final AtomicFile mProfileFile = new AtomicFile(PROFILE_FILE);
+    private final AtomicFile mStoreFile = new AtomicFile(ProfileStore.STORE_FILE);
+    private boolean mUseBinaryStore;
     private BackupManager mBackupManager;
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
 
+    private final Runnable mPersistProfiles = new Runnable() {
+        @Override
+        public void run() {
+            writeIfDirty();
+        }
+    };
+
     private Runnable mBindKeyguard = new Runnable() {
         @Override
         public void run() {
@@ -134,10 +188,11 @@ public class ProfileManagerService extends MKSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                // The profiles are reloaded from disk below, so pending changes must be there
+                persistNow();
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                persistNow();
             }
         }
     };
@@ -151,6 +206,8 @@ public class ProfileManagerService extends MKSystemService {
                     newState.putExtra(ProfileManager.EXTRA_PROFILES_STATE, msg.arg1);
 
                     mContext.sendBroadcastAsUser(newState, UserHandle.ALL);
+                    // getActiveProfile() returns the empty profile while profiles are disabled
+                    notifyActiveProfileChanged();
 
                     if (ProfileManager.PROFILES_STATE_ENABLED == msg.arg1) {
                         maybeApplyActiveProfile();
@@ -233,6 +290,12 @@ public class ProfileManagerService extends MKSystemService {
         super(context);
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
+
+        // Keep trigger event handling, and the profile switches it causes, off the main thread
+        HandlerThread triggerThread = new HandlerThread(TAG + "Triggers",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        triggerThread.start();
+        mTriggerHandler = new Handler(triggerThread.getLooper());
         if (context.getPackageManager().hasSystemFeature(
                 MKContextConstants.Features.PROFILES)) {
             publishBinderService(MKContextConstants.MK_PROFILE_SERVICE, mService);
@@ -255,6 +318,12 @@ public class ProfileManagerService extends MKSystemService {
     @Override
     public void onStart() {
         mBackupManager = new BackupManager(mContext);
+        mUseBinaryStore = mContext.getResources().getBoolean(
+                org.mokee.platform.internal.R.bool.config_profileBinaryStore);
+        if (!mUseBinaryStore) {
+            // Don't pick up a stale store if it gets enabled again later
+            mStoreFile.delete();
+        }
 
         mWildcardGroup = new NotificationGroup(
                 mContext.getString(org.mokee.platform.internal.R.string.wildcardProfile),
@@ -296,10 +365,17 @@ public class ProfileManagerService extends MKSystemService {
     }
 
     private void initialize(boolean skipFile) {
-        mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
-        mProfiles = new HashMap<UUID, Profile>();
-        mProfileNames = new HashMap<String, UUID>();
-        mGroups = new HashMap<UUID, NotificationGroup>();
+        if (mTriggerHelper == null) {
+            mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, mTriggerHandler, this);
+        }
+        synchronized (mLock) {
+            mProfiles.clear();
+            mPendingProfiles.clear();
+            mUndecodableProfiles.clear();
+            mProfileNames.clear();
+            mGroups.clear();
+        }
+        mGroupsByPackage = Collections.emptyMap();
         mEmptyProfile = new Profile("EmptyProfile");
         mDirty = false;
 
@@ -307,7 +383,9 @@ public class ProfileManagerService extends MKSystemService {
 
         if (!skipFile) {
             try {
-                loadFromFile();
+                if (!loadFromStore()) {
+                    loadFromFile();
+                }
             } catch (XmlPullParserException e) {
                 init = true;
             } catch (IOException e) {
@@ -322,6 +400,8 @@ public class ProfileManagerService extends MKSystemService {
                 Log.e(TAG, "Error loading xml from resource: ", ex);
             }
         }
+        updateTriggerIndex();
+        notifyNotificationGroupsChanged();
     }
 
     private final IBinder mService = new IProfileManager.Stub() {
@@ -341,7 +421,8 @@ public class ProfileManagerService extends MKSystemService {
                 Log.w(TAG, "Unable to set active profile because profiles are disabled.");
                 return false;
             }
-            if (!mProfileNames.containsKey(profileName)) {
+            final UUID profileUuid = getProfileUuidByName(profileName);
+            if (profileUuid == null) {
                 // Since profileName could not be casted into a UUID, we can call it a string.
                 Log.w(TAG, "Unable to find profile to set active, based on string: " + profileName);
                 return false;
@@ -357,7 +438,7 @@ public class ProfileManagerService extends MKSystemService {
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            setActiveProfileInternal(getProfileByUuid(profileUuid), true);
             restoreCallingIdentity(token);
             return true;
         }
@@ -393,10 +474,11 @@ public class ProfileManagerService extends MKSystemService {
         @Override
         @Deprecated
         public Profile getProfileByName(String profileName) {
-            if (mProfileNames.containsKey(profileName)) {
-                return mProfiles.get(mProfileNames.get(profileName));
-            } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
-                return mProfiles.get(UUID.fromString(profileName));
+            final UUID profileUuid = getProfileUuidByName(profileName);
+            if (profileUuid != null) {
+                return getProfileByUuid(profileUuid);
+            } else if (hasProfile(UUID.fromString((profileName)))) {
+                return getProfileByUuid(UUID.fromString(profileName));
             } else {
                 return null;
             }
@@ -409,10 +491,15 @@ public class ProfileManagerService extends MKSystemService {
         }
 
         @Override
-        public Profile[] getProfiles() {
+        public ParceledListSlice getProfiles() {
             Profile[] profiles = getProfileList().toArray(new Profile[0]);
             Arrays.sort(profiles);
-            return profiles;
+            return new ParceledListSlice<Profile>(Arrays.asList(profiles));
+        }
+
+        @Override
+        public ParceledListSlice getProfileSummaries() {
+            return new ParceledListSlice<ProfileSummary>(getProfileSummaryList(isEnabled()));
         }
 
         @Override
@@ -427,8 +514,13 @@ public class ProfileManagerService extends MKSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
+            final boolean removed;
+            synchronized (mLock) {
+                removed = mProfileNames.remove(profile.getName()) != null
+                        && removeProfileInternal(profile.getUuid());
+            }
+            if (removed) {
+                updateTriggerIndex();
                 mDirty = true;
                 long token = clearCallingIdentity();
                 persistIfDirty();
@@ -442,15 +534,18 @@ public class ProfileManagerService extends MKSystemService {
         @Override
         public void updateProfile(Profile profile) {
             enforceChangePermissions();
-            Profile old = mProfiles.get(profile.getUuid());
+            synchronized (mLock) {
+                Profile old = getProfileByUuid(profile.getUuid());
 
-            if (old == null) {
-                return;
-            }
+                if (old == null) {
+                    return;
+                }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
-            mProfiles.put(profile.getUuid(), profile);
+                mProfileNames.remove(old.getName());
+                mProfileNames.put(profile.getName(), profile.getUuid());
+                mProfiles.put(profile.getUuid(), profile);
+            }
+            updateTriggerIndex();
             /* no need to set mDirty, if the profile was actually changed,
              * it's marked as dirty by itself */
             long token = clearCallingIdentity();
@@ -465,15 +560,17 @@ public class ProfileManagerService extends MKSystemService {
 
         @Override
         public boolean profileExists(ParcelUuid profileUuid) {
-            return mProfiles.containsKey(profileUuid.getUuid());
+            return hasProfile(profileUuid.getUuid());
         }
 
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(profileName)) {
-                    return true;
+            synchronized (mLock) {
+                for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
+                    if (entry.getKey().equalsIgnoreCase(profileName)) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -482,9 +579,11 @@ public class ProfileManagerService extends MKSystemService {
         @Override
         @Deprecated
         public boolean notificationGroupExistsByName(String notificationGroupName) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.getName().equalsIgnoreCase(notificationGroupName)) {
-                    return true;
+            synchronized (mLock) {
+                for (NotificationGroup group : mGroups.values()) {
+                    if (group.getName().equalsIgnoreCase(notificationGroupName)) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -492,7 +591,9 @@ public class ProfileManagerService extends MKSystemService {
 
         @Override
         public NotificationGroup[] getNotificationGroups() {
-            return mGroups.values().toArray(new NotificationGroup[0]);
+            synchronized (mLock) {
+                return mGroups.values().toArray(new NotificationGroup[0]);
+            }
         }
 
         @Override
@@ -502,46 +603,53 @@ public class ProfileManagerService extends MKSystemService {
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
+            notifyNotificationGroupsChanged();
         }
 
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
-            // Remove the corresponding ProfileGroup from all the profiles too if
-            // they use it.
-            for (Profile profile : mProfiles.values()) {
-                profile.removeProfileGroup(group.getUuid());
+            final List<Profile> profiles = getProfileList();
+            synchronized (mLock) {
+                if (mGroups.remove(group.getUuid()) != null) {
+                    mDirty = true;
+                    updatePackageIndexLocked();
+                }
+                // Remove the corresponding ProfileGroup from all the profiles too if
+                // they use it.
+                for (Profile profile : profiles) {
+                    profile.removeProfileGroup(group.getUuid());
+                }
             }
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
+            notifyNotificationGroupsChanged();
         }
 
         @Override
         public void updateNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            NotificationGroup old = mGroups.get(group.getUuid());
-            if (old == null) {
-                return;
-            }
+            synchronized (mLock) {
+                NotificationGroup old = mGroups.get(group.getUuid());
+                if (old == null) {
+                    return;
+                }
 
-            mGroups.put(group.getUuid(), group);
+                mGroups.put(group.getUuid(), group);
+                updatePackageIndexLocked();
+            }
             /* no need to set mDirty, if the group was actually changed,
              * it's marked as dirty by itself */
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
+            notifyNotificationGroupsChanged();
         }
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
-            }
-            return null;
+            return mGroupsByPackage.get(pkg);
         }
 
         @Override
@@ -549,7 +657,9 @@ public class ProfileManagerService extends MKSystemService {
             if (uuid.getUuid().equals(mWildcardGroup.getUuid())) {
                 return mWildcardGroup;
             }
-            return mGroups.get(uuid.getUuid());
+            synchronized (mLock) {
+                return mGroups.get(uuid.getUuid());
+            }
         }
 
         @Override
@@ -564,16 +674,53 @@ public class ProfileManagerService extends MKSystemService {
                 restoreCallingIdentity(token);
             }
         }
+
+        @Override
+        public void registerChangeListener(IProfileChangeListener listener) {
+            // Profiles have no read permission of their own, so listening needs the
+            // permission guarding the profile manager
+            mContext.enforceCallingOrSelfPermission(
+                    mokee.platform.Manifest.permission.MODIFY_PROFILES,
+                    "You do not have permissions to listen to the Profile Manager.");
+            mChangeListeners.register(listener);
+        }
+
+        @Override
+        public void unregisterChangeListener(IProfileChangeListener listener) {
+            mChangeListeners.unregister(listener);
+        }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("Profile Manager Service State:");
+            pw.println(" Active profile: " + (mActiveProfile != null
+                    ? mActiveProfile.getName() + " (" + mActiveProfile.getUuid() + ")" : null));
+            synchronized (mLock) {
+                pw.println(" Profiles: " + (mProfiles.size() + mPendingProfiles.size())
+                        + " (" + mPendingProfiles.size() + " not decoded yet)");
+                pw.println(" Notification groups: " + mGroups.size());
+            }
+            pw.println(" Binary store: " + (mUseBinaryStore ? "enabled" : "disabled"));
+            mTriggerHelper.dump(pw);
+        }
     };
 
     private void addProfileInternal(Profile profile) {
-        // Make sure this profile has all of the correct groups.
-        for (NotificationGroup group : mGroups.values()) {
-            ensureGroupInProfile(profile, group, false);
+        synchronized (mLock) {
+            // Make sure this profile has all of the correct groups.
+            for (NotificationGroup group : mGroups.values()) {
+                ensureGroupInProfile(profile, group, false);
+            }
+            ensureGroupInProfile(profile, mWildcardGroup, true);
+            mPendingProfiles.remove(profile.getUuid());
+            mUndecodableProfiles.remove(profile.getUuid());
+            mProfiles.put(profile.getUuid(), profile);
+            mProfileNames.put(profile.getName(), profile.getUuid());
         }
-        ensureGroupInProfile(profile, mWildcardGroup, true);
-        mProfiles.put(profile.getUuid(), profile);
-        mProfileNames.put(profile.getName(), profile.getUuid());
+        updateTriggerIndex();
         mDirty = true;
     }
 
@@ -597,11 +744,12 @@ public class ProfileManagerService extends MKSystemService {
 
     private Profile getProfileInternal(UUID profileUuid) {
         // use primary UUID first
-        if (mProfiles.containsKey(profileUuid)) {
-            return mProfiles.get(profileUuid);
+        Profile profile = getProfileByUuid(profileUuid);
+        if (profile != null) {
+            return profile;
         }
         // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : getProfileList()) {
             for (UUID uuid : p.getSecondaryUuids()) {
                 if (profileUuid.equals(uuid)) {
                     return p;
@@ -612,59 +760,263 @@ public class ProfileManagerService extends MKSystemService {
         return null;
     }
 
-    /* package */ Collection<Profile> getProfileList() {
-        return mProfiles.values();
+    /**
+     * Summarizes all profiles, sorted by name. Profiles which weren't decoded from the binary
+     * store yet are summarized from its header and stay undecoded.
+     * @param enabled whether profiles are enabled, no profile is active otherwise
+     */
+    private List<ProfileSummary> getProfileSummaryList(boolean enabled) {
+        final Profile activeProfile = mActiveProfile;
+        final UUID activeUuid = enabled && activeProfile != null
+                ? activeProfile.getUuid() : null;
+        List<ProfileSummary> summaries = new ArrayList<ProfileSummary>();
+        synchronized (mLock) {
+            for (Profile p : mProfiles.values()) {
+                summaries.add(new ProfileSummary(p.getUuid(), p.getName(), p.getProfileType(),
+                        p.getUuid().equals(activeUuid)));
+            }
+            for (ProfileStore.Entry entry : mPendingProfiles.values()) {
+                summaries.add(new ProfileSummary(entry.uuid, entry.getName(mContext),
+                        entry.profileType, entry.uuid.equals(activeUuid)));
+            }
+        }
+        Collections.sort(summaries);
+        return summaries;
+    }
+
+    /**
+     * Returns all profiles which can be decoded, as a copy which may be iterated without
+     * holding the lock.
+     */
+    /* package */ List<Profile> getProfileList() {
+        synchronized (mLock) {
+            for (UUID uuid : new ArrayList<UUID>(mPendingProfiles.keySet())) {
+                decodePendingProfileLocked(uuid);
+            }
+            return new ArrayList<Profile>(mProfiles.values());
+        }
+    }
+
+    /**
+     * Looks up a profile by its primary uuid, decoding it from the binary store if it wasn't
+     * accessed before.
+     */
+    /* package */ Profile getProfileByUuid(UUID profileUuid) {
+        synchronized (mLock) {
+            Profile profile = mProfiles.get(profileUuid);
+            if (profile == null) {
+                profile = decodePendingProfileLocked(profileUuid);
+            }
+            return profile;
+        }
+    }
+
+    private UUID getProfileUuidByName(String profileName) {
+        synchronized (mLock) {
+            return mProfileNames.get(profileName);
+        }
+    }
+
+    private boolean hasProfile(UUID profileUuid) {
+        synchronized (mLock) {
+            return mProfiles.containsKey(profileUuid)
+                    || mPendingProfiles.containsKey(profileUuid);
+        }
+    }
+
+    private boolean removeProfileInternal(UUID profileUuid) {
+        synchronized (mLock) {
+            boolean removed = mProfiles.remove(profileUuid) != null;
+            removed |= mPendingProfiles.remove(profileUuid) != null;
+            mUndecodableProfiles.remove(profileUuid);
+            return removed;
+        }
+    }
+
+    private Profile decodePendingProfileLocked(UUID profileUuid) {
+        ProfileStore.Entry entry = mPendingProfiles.get(profileUuid);
+        if (entry == null || mUndecodableProfiles.contains(profileUuid)) {
+            return null;
+        }
+
+        Profile profile;
+        try {
+            profile = ProfileStore.decodeProfile(entry, mContext);
+        } catch (XmlPullParserException | IOException e) {
+            // Keep the entry, it is written back as it was read instead of being lost
+            Log.e(TAG, "Unable to decode profile " + profileUuid, e);
+            mUndecodableProfiles.add(profileUuid);
+            return null;
+        }
+        // Same as addProfileInternal(), groups were added while the profile was pending
+        for (NotificationGroup group : mGroups.values()) {
+            ensureGroupInProfile(profile, group, false);
+        }
+        ensureGroupInProfile(profile, mWildcardGroup, true);
+        mPendingProfiles.remove(profileUuid);
+        mProfiles.put(profileUuid, profile);
+
+        if (LOCAL_LOGV) Log.v(TAG, "Decoded profile " + profile.getName());
+        return profile;
+    }
+
+    private void updateTriggerIndex() {
+        Map<UUID, Collection<Profile.ProfileTrigger>> triggers =
+                new HashMap<UUID, Collection<Profile.ProfileTrigger>>();
+        synchronized (mLock) {
+            for (Profile p : mProfiles.values()) {
+                triggers.put(p.getUuid(), p.getTriggers());
+            }
+            for (ProfileStore.Entry entry : mPendingProfiles.values()) {
+                triggers.put(entry.uuid, Arrays.asList(entry.triggers));
+            }
+        }
+        mTriggerHelper.updateTriggerIndex(triggers);
     }
 
-    private String getXmlString() {
+    private void writeXml(Writer writer, Profile activeProfile, List<Profile> profiles,
+            List<ProfileStore.Entry> pendingProfiles, List<byte[]> groups)
+            throws IOException {
+        // Stream one item at a time to the file instead of building the whole document
         StringBuilder builder = new StringBuilder();
-        builder.append("<profiles>\n<active>");
-        builder.append(TextUtils.htmlEncode(mActiveProfile.getUuid().toString()));
-        builder.append("</active>\n");
+        writer.write("<profiles>\n<active>");
+        writer.write(TextUtils.htmlEncode(activeProfile.getUuid().toString()));
+        writer.write("</active>\n");
 
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : profiles) {
+            builder.setLength(0);
             p.getXmlString(builder, mContext);
+            writer.append(builder);
+        }
+        for (ProfileStore.Entry entry : pendingProfiles) {
+            writer.write(entry.getXmlString());
         }
-        for (NotificationGroup g : mGroups.values()) {
-            g.getXmlString(builder, mContext);
+        for (byte[] body : groups) {
+            writer.write(new String(body, StandardCharsets.UTF_8));
         }
-        builder.append("</profiles>\n");
-        return builder.toString();
+        writer.write("</profiles>\n");
     }
 
-    private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
-            for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
-                }
-            }
+    /**
+     * Schedules writing the profiles to disk if anything changed. Changes made until the write
+     * happens are written along with it.
+     */
+    private void persistIfDirty() {
+        Handler handler = BackgroundThread.getHandler();
+        if (!handler.hasCallbacks(mPersistProfiles)) {
+            handler.postDelayed(mPersistProfiles, PERSIST_DELAY_MILLIS);
         }
-        if (!dirty) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    }
+
+    /**
+     * Writes the profiles to disk right away if anything changed, including changes that are
+     * still scheduled to be written.
+     */
+    private void persistNow() {
+        BackgroundThread.getHandler().removeCallbacks(mPersistProfiles);
+        writeIfDirty();
+    }
+
+    private synchronized void writeIfDirty() {
+        final Profile activeProfile = mActiveProfile;
+        final List<Profile> profiles;
+        final List<ProfileStore.Entry> pendingProfiles;
+        final List<byte[]> groups;
+        // Binder threads change the profiles and groups under mLock, so only take copies of
+        // them here; serializing and writing happen without holding it.
+        synchronized (mLock) {
+            if (!isDirtyLocked() || activeProfile == null) {
+                return;
+            }
+
+            // Clear before writing, so changes made meanwhile schedule another write
+            mDirty = false;
+            profiles = new ArrayList<Profile>(mProfiles.size());
+            for (Profile p : mProfiles.values()) {
+                profiles.add(copyOf(p));
+                p.clearDirty();
             }
+            pendingProfiles = new ArrayList<ProfileStore.Entry>(mPendingProfiles.values());
+            // Groups are only a name and a list of packages, so take their bodies right away,
+            // which clears their dirty state as well
+            groups = new ArrayList<byte[]>(mGroups.size());
+            StringBuilder builder = new StringBuilder();
+            for (NotificationGroup g : mGroups.values()) {
+                builder.setLength(0);
+                g.getXmlString(builder, mContext);
+                groups.add(builder.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        Log.d(TAG, "Saving profile data...");
+        FileOutputStream out = null;
+        try {
+            out = mProfileFile.startWrite();
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writeXml(writer, activeProfile, profiles, pendingProfiles, groups);
+            writer.flush();
+            mProfileFile.finishWrite(out);
+            Log.d(TAG, "Save completed.");
+            mBackupManager.dataChanged();
+        } catch (Throwable e) {
+            Log.e(TAG, "Error saving profile data", e);
+            mProfileFile.failWrite(out);
+            // The items are no longer dirty themselves, so make sure to retry
+            mDirty = true;
+            return;
         }
-        if (dirty) {
+
+        if (mUseBinaryStore) {
+            out = null;
             try {
-                Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
-                Log.d(TAG, "Save completed.");
-                mDirty = false;
-                mBackupManager.dataChanged();
+                out = mStoreFile.startWrite();
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                ProfileStore.write(data, mContext, activeProfile.getUuid(), profiles,
+                        pendingProfiles, groups);
+                data.flush();
+                mStoreFile.finishWrite(out);
             } catch (Throwable e) {
-                e.printStackTrace();
+                Log.e(TAG, "Error saving profile store", e);
+                mStoreFile.failWrite(out);
+                // Fall back to the XML file, which is up to date, until the next write
+                mStoreFile.delete();
             }
         }
     }
 
+    /**
+     * Copies a profile through a parcel, so that it can be serialized while binder threads
+     * change the original.
+     */
+    private static Profile copyOf(Profile profile) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private boolean isDirtyLocked() {
+        if (mDirty) {
+            return true;
+        }
+        for (Profile profile : mProfiles.values()) {
+            if (profile.isDirty()) {
+                return true;
+            }
+        }
+        for (NotificationGroup group : mGroups.values()) {
+            if (group.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void enforceChangePermissions() {
         mContext.enforceCallingOrSelfPermission(
                 mokee.platform.Manifest.permission.MODIFY_PROFILES,
@@ -673,20 +1025,83 @@ public class ProfileManagerService extends MKSystemService {
 
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
+        // Don't let a scheduled write replace the restored file before it is loaded
+        BackgroundThread.getHandler().removeCallbacks(mPersistProfiles);
+        // Only profiles.xml is backed up, so import it instead of loading the store
+        mStoreFile.delete();
         initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
+        final List<Profile> profiles = getProfileList();
+        synchronized (mLock) {
+            for (Profile p : profiles) {
+                p.validateRingtones(mContext);
+            }
         }
         persistIfDirty();
     }
 
+    /**
+     * Loads the binary store, if it is enabled and readable. Only the header and the groups
+     * are decoded, profiles are decoded when first accessed.
+     * @return Whether the store was loaded; if not, profiles.xml should be loaded instead.
+     */
+    private boolean loadFromStore() throws XmlPullParserException, IOException {
+        if (!mUseBinaryStore || !mStoreFile.exists()) {
+            return false;
+        }
+
+        ProfileStore.Contents contents;
+        List<NotificationGroup> groups = new ArrayList<NotificationGroup>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(mStoreFile.openRead()));
+        try {
+            contents = ProfileStore.read(in);
+            for (byte[] body : contents.groups) {
+                groups.add(ProfileStore.decodeGroup(body, mContext));
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(TAG, "Unable to read " + ProfileStore.STORE_FILE + ", using "
+                    + PROFILE_FILE + " instead", e);
+            return false;
+        } finally {
+            in.close();
+        }
+        if (contents.profiles.isEmpty()) {
+            return false;
+        }
+
+        for (NotificationGroup group : groups) {
+            addNotificationGroupInternal(group);
+        }
+        synchronized (mLock) {
+            for (ProfileStore.Entry entry : contents.profiles) {
+                mPendingProfiles.put(entry.uuid, entry);
+                mProfileNames.put(entry.getName(mContext), entry.uuid);
+            }
+        }
+
+        // As in loadXml(), don't initialise the active profile on startup
+        boolean dirty = false;
+        if (!setActiveProfileInternal(contents.activeUuid, false)) {
+            // We must have SOME profile active
+            setActiveProfileInternal(getProfileByUuid(contents.profiles.get(0).uuid), false);
+            dirty = true;
+        }
+        // Only the active profile has been decoded, and nothing changed
+        mDirty = dirty;
+        if (LOCAL_LOGV) Log.v(TAG, "Loaded " + contents.profiles.size() + " profile(s) from "
+                + ProfileStore.STORE_FILE);
+        return true;
+    }
+
     private void loadFromFile() throws XmlPullParserException, IOException {
         XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
+        FileInputStream in = mProfileFile.openRead();
+        try {
+            xpp.setInput(in, StandardCharsets.UTF_8.name());
+            loadXml(xpp, mContext);
+        } finally {
+            in.close();
+        }
         persistIfDirty();
     }
 
@@ -722,12 +1137,13 @@ public class ProfileManagerService extends MKSystemService {
             // Try / catch block to detect if XML file needs to be upgraded.
             setActiveProfileInternal(UUID.fromString(active), false);
         } catch (IllegalArgumentException e) {
-            if (mProfileNames.containsKey(active)) {
-                setActiveProfileInternal(mProfileNames.get(active), false);
+            final UUID activeUuid = getProfileUuidByName(active);
+            if (activeUuid != null) {
+                setActiveProfileInternal(activeUuid, false);
             } else {
                 // Final fail-safe: We must have SOME profile active.
                 // If we couldn't select one by now, we'll pick the first in the set.
-                setActiveProfileInternal(mProfiles.values().iterator().next(), false);
+                setActiveProfileInternal(getProfileList().get(0), false);
             }
             // This is a hint that we probably just upgraded the XML file. Save changes.
             mDirty = true;
@@ -747,14 +1163,15 @@ public class ProfileManagerService extends MKSystemService {
     }
 
     private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
-        if (!mProfiles.containsKey(profileUuid)) {
+        Profile profile = getProfileByUuid(profileUuid);
+        if (profile == null) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
             return false;
         }
 
         if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        setActiveProfileInternal(profile, doInit);
         return true;
     }
 
@@ -808,16 +1225,61 @@ public class ProfileManagerService extends MKSystemService {
                     mActiveProfile.getUuid().toString());
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
         }
+        // Even if it's the same profile, it may have been replaced by an updated copy
+        notifyActiveProfileChanged();
     }
 
     private void addNotificationGroupInternal(NotificationGroup group) {
-        if (mGroups.put(group.getUuid(), group) == null) {
-            // If the above is true, then the ProfileGroup shouldn't exist in
-            // the profile. Ensure it is added.
-            for (Profile profile : mProfiles.values()) {
-                ensureGroupInProfile(profile, group, false);
+        synchronized (mLock) {
+            if (mGroups.put(group.getUuid(), group) == null) {
+                // If the above is true, then the ProfileGroup shouldn't exist in
+                // the profile. Ensure it is added.
+                for (Profile profile : mProfiles.values()) {
+                    ensureGroupInProfile(profile, group, false);
+                }
             }
+            updatePackageIndexLocked();
         }
         mDirty = true;
     }
+
+    private void updatePackageIndexLocked() {
+        Map<String, NotificationGroup> index = new HashMap<String, NotificationGroup>();
+        for (NotificationGroup group : mGroups.values()) {
+            for (String pkg : group.getPackages()) {
+                // Keep the first match, like the scan this index replaces
+                if (!index.containsKey(pkg)) {
+                    index.put(pkg, group);
+                }
+            }
+        }
+        mGroupsByPackage = index;
+    }
+
+    private void notifyNotificationGroupsChanged() {
+        notifyChangeListeners(false /* activeProfile */);
+    }
+
+    private void notifyActiveProfileChanged() {
+        notifyChangeListeners(true /* activeProfile */);
+    }
+
+    private void notifyChangeListeners(boolean activeProfile) {
+        synchronized (mChangeListeners) {
+            int N = mChangeListeners.beginBroadcast();
+            for (int i = 0; i < N; i++) {
+                try {
+                    IProfileChangeListener listener = mChangeListeners.getBroadcastItem(i);
+                    if (activeProfile) {
+                        listener.onActiveProfileChanged();
+                    } else {
+                        listener.onNotificationGroupsChanged();
+                    }
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing the dead object
+                }
+            }
+            mChangeListeners.finishBroadcast();
+        }
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Handler;
+import android.text.format.DateFormat;
+import android.util.ArraySet;
+import android.util.Log;
+
+import mokee.app.Profile;
+import mokee.app.Profile.ScheduleWindow;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serves all {@link Profile.TriggerType#SCHEDULE} triggers from a single alarm.
+ * <p>
+ * The windows of all triggers are flattened into one index of transitions, ordered by minute
+ * of the week. Only the next transition has an alarm set, and once it fired the alarm is set
+ * for the one after it, so the device wakes up once per transition no matter how many
+ * profiles have schedules. Windows which share a transition minute share the wakeup.
+ * <p>
+ * Transitions are only reported as they happen; a window that is already open when its
+ * trigger is added, or when profiles get enabled, is reported when it next opens.
+ */
+final class ProfileScheduler {
+    private static final String TAG = "ProfileScheduler";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    private static final Transition[] NO_TRANSITIONS = new Transition[0];
+    private static final String[] NO_IDS = new String[0];
+
+    /**
+     * Receives the transitions of schedule triggers, on the scheduler's handler.
+     */
+    interface Callback {
+        /**
+         * @param id The id of the trigger whose window opened or closed.
+         * @param state {@link Profile.TriggerState#ON_CONNECT} if the window opened,
+         *     {@link Profile.TriggerState#ON_DISCONNECT} if it closed.
+         */
+        void onScheduleTransition(String id, int state);
+    }
+
+    /**
+     * The windows that close and open at a minute of the week.
+     */
+    static final class Transition {
+        final int minuteOfWeek;
+        final String[] closing;
+        final String[] opening;
+
+        Transition(int minuteOfWeek, String[] closing, String[] opening) {
+            this.minuteOfWeek = minuteOfWeek;
+            this.closing = closing;
+            this.opening = opening;
+        }
+    }
+
+    private final AlarmManager mAlarmManager;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    // Sorted by minute of the week. Rebuilt whenever the triggers change and published as a
+    // whole, the alarm is only ever touched on mHandler.
+    private volatile Transition[] mTransitions = NO_TRANSITIONS;
+    private volatile boolean mEnabled;
+
+    // Only touched on mHandler, read by dump()
+    private Transition mNextTransition;
+    private volatile long mNextDeadline;
+    private volatile long mAlarmsFired;
+
+    private final AlarmManager.OnAlarmListener mAlarmListener =
+            new AlarmManager.OnAlarmListener() {
+        @Override
+        public void onAlarm() {
+            onTransition();
+        }
+    };
+
+    private final Runnable mReschedule = new Runnable() {
+        @Override
+        public void run() {
+            scheduleNext();
+        }
+    };
+
+    /**
+     * @param handler The handler to run the alarm and report transitions on.
+     */
+    ProfileScheduler(Context context, Handler handler, Callback callback) {
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Rebuilds the transition index from the ids of all schedule triggers, and moves the alarm
+     * to the next transition.
+     */
+    void updateSchedules(Collection<String> ids) {
+        mTransitions = buildTransitions(ids);
+        mHandler.post(mReschedule);
+    }
+
+    /**
+     * Flattens the windows of schedule triggers into transitions, ordered by minute of the
+     * week. Invalid ids are skipped.
+     */
+    static Transition[] buildTransitions(Collection<String> ids) {
+        Map<Integer, List<ArraySet<String>>> transitions =
+                new TreeMap<Integer, List<ArraySet<String>>>();
+        for (String id : ids) {
+            ScheduleWindow window = ScheduleWindow.fromTriggerId(id);
+            if (window == null) {
+                Log.w(TAG, "Ignoring invalid schedule " + id);
+                continue;
+            }
+            for (int day = 0; day < 7; day++) {
+                if ((window.getDays() & (1 << day)) == 0) {
+                    continue;
+                }
+                final int start = day * MINUTES_PER_DAY + window.getStartMinute();
+                int end = day * MINUTES_PER_DAY + window.getEndMinute();
+                if (window.getEndMinute() < window.getStartMinute()) {
+                    // Closes on the next day, which is Sunday after Saturday
+                    end = (end + MINUTES_PER_DAY) % MINUTES_PER_WEEK;
+                }
+                getIds(transitions, end, 0).add(id);
+                getIds(transitions, start, 1).add(id);
+            }
+        }
+
+        Transition[] index = new Transition[transitions.size()];
+        int i = 0;
+        for (Map.Entry<Integer, List<ArraySet<String>>> entry : transitions.entrySet()) {
+            index[i++] = new Transition(entry.getKey(),
+                    entry.getValue().get(0).toArray(NO_IDS),
+                    entry.getValue().get(1).toArray(NO_IDS));
+        }
+        return index;
+    }
+
+    /**
+     * Starts or stops reporting transitions.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        mHandler.post(mReschedule);
+    }
+
+    /**
+     * Moves the alarm to the next transition, for when the time or time zone changed. Must be
+     * called on the scheduler's handler.
+     */
+    void onTimeChanged() {
+        scheduleNext();
+    }
+
+    private static ArraySet<String> getIds(Map<Integer, List<ArraySet<String>>> transitions,
+            int minuteOfWeek, int which) {
+        List<ArraySet<String>> ids = transitions.get(minuteOfWeek);
+        if (ids == null) {
+            ids = new ArrayList<ArraySet<String>>(2);
+            ids.add(new ArraySet<String>());
+            ids.add(new ArraySet<String>());
+            transitions.put(minuteOfWeek, ids);
+        }
+        return ids.get(which);
+    }
+
+    private void onTransition() {
+        final Transition transition = mNextTransition;
+        mAlarmsFired++;
+        if (transition != null && mEnabled) {
+            if (LOCAL_LOGV) Log.v(TAG, "Transition at minute " + transition.minuteOfWeek
+                    + ": " + transition.closing.length + " closing, "
+                    + transition.opening.length + " opening");
+            // Close windows first, so a window opening as another closes ends up active
+            for (String id : transition.closing) {
+                mCallback.onScheduleTransition(id, Profile.TriggerState.ON_DISCONNECT);
+            }
+            for (String id : transition.opening) {
+                mCallback.onScheduleTransition(id, Profile.TriggerState.ON_CONNECT);
+            }
+        }
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        mAlarmManager.cancel(mAlarmListener);
+        mNextTransition = null;
+        mNextDeadline = 0;
+
+        final Transition[] transitions = mTransitions;
+        if (!mEnabled || transitions.length == 0) {
+            return;
+        }
+
+        final Calendar deadline = Calendar.getInstance();
+        final int now = (deadline.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * MINUTES_PER_DAY
+                + deadline.get(Calendar.HOUR_OF_DAY) * 60 + deadline.get(Calendar.MINUTE);
+
+        // The first transition after the current minute, or the first one of next week
+        int low = 0;
+        int high = transitions.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (transitions[mid].minuteOfWeek > now) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        final Transition next = transitions[low % transitions.length];
+        final int target = low < transitions.length
+                ? next.minuteOfWeek : next.minuteOfWeek + MINUTES_PER_WEEK;
+
+        // Set the fields rather than adding minutes, so that DST changes are accounted for
+        deadline.add(Calendar.DAY_OF_YEAR, target / MINUTES_PER_DAY - now / MINUTES_PER_DAY);
+        deadline.set(Calendar.HOUR_OF_DAY, (target % MINUTES_PER_DAY) / 60);
+        deadline.set(Calendar.MINUTE, target % 60);
+        deadline.set(Calendar.SECOND, 0);
+        deadline.set(Calendar.MILLISECOND, 0);
+
+        mNextTransition = next;
+        mNextDeadline = deadline.getTimeInMillis();
+        mAlarmManager.setExact(AlarmManager.RTC_WAKEUP, mNextDeadline, TAG, mAlarmListener,
+                mHandler);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Schedules:");
+        pw.println("  Enabled: " + mEnabled);
+        pw.println("  Transitions: " + mTransitions.length);
+        final long nextDeadline = mNextDeadline;
+        pw.println("  Next transition: " + (nextDeadline > 0
+                ? DateFormat.format("yyyy-MM-dd HH:mm", nextDeadline) : "none"));
+        pw.println("  Alarms fired: " + mAlarmsFired);
+    }
+}
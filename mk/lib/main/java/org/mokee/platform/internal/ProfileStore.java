@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import android.app.NotificationGroup;
+import android.content.Context;
+import android.os.Environment;
+
+import mokee.app.Profile;
+import mokee.app.Profile.ProfileTrigger;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compact binary store for profiles and notification groups.
+ * <p>
+ * The store starts with a header indexing every profile by uuid, name and type, along with
+ * its triggers, followed by the bodies of the profiles and notification groups. Bodies hold the
+ * same XML fragments as profiles.xml, so that they stay readable across releases and can be
+ * copied into the XML export without being parsed. Profile bodies are only decoded when the
+ * profile is first accessed; the header is enough to look profiles up and to index triggers.
+ */
+final class ProfileStore {
+    /* package */ static final File STORE_FILE =
+            new File(Environment.getDataSystemDirectory(), "profiles.bin");
+
+    private static final int MAGIC = 0x4d4b5046; // "MKPF"
+    private static final int VERSION = 2;
+
+    /**
+     * An undecoded profile, as read from the store.
+     */
+    static final class Entry {
+        final UUID uuid;
+        // Entry name of the string resource the profile name is loaded from, if any
+        final String nameRes;
+        final String name;
+        final int profileType;
+        final ProfileTrigger[] triggers;
+        final byte[] body;
+
+        Entry(UUID uuid, String nameRes, String name, int profileType,
+                ProfileTrigger[] triggers, byte[] body) {
+            this.uuid = uuid;
+            this.nameRes = nameRes;
+            this.name = name;
+            this.profileType = profileType;
+            this.triggers = triggers;
+            this.body = body;
+        }
+
+        /**
+         * Returns the name of the profile in the current locale, resolved the same way
+         * {@link Profile#fromXml} does.
+         */
+        String getName(Context context) {
+            if (nameRes != null) {
+                int resId = context.getResources().getIdentifier(nameRes, "string",
+                        "mokee.platform");
+                if (resId > 0) {
+                    return context.getResources().getString(resId);
+                }
+            }
+            return name;
+        }
+
+        String getXmlString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The contents of the store.
+     */
+    static final class Contents {
+        final UUID activeUuid;
+        final List<Entry> profiles;
+        final List<byte[]> groups;
+
+        Contents(UUID activeUuid, List<Entry> profiles, List<byte[]> groups) {
+            this.activeUuid = activeUuid;
+            this.profiles = profiles;
+            this.groups = groups;
+        }
+    }
+
+    private ProfileStore() {
+    }
+
+    /**
+     * Reads the header and the raw bodies of a store, without decoding any profile.
+     * @throws IOException if the store is truncated or has an unknown format
+     */
+    static Contents read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a profile store");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported profile store version " + version);
+        }
+        final UUID activeUuid = readUuid(in);
+
+        final int profileCount = in.readInt();
+        List<UUID> uuids = new ArrayList<UUID>(profileCount);
+        List<String> nameRes = new ArrayList<String>(profileCount);
+        List<String> names = new ArrayList<String>(profileCount);
+        int[] types = new int[profileCount];
+        List<ProfileTrigger[]> triggers = new ArrayList<ProfileTrigger[]>(profileCount);
+        for (int i = 0; i < profileCount; i++) {
+            uuids.add(readUuid(in));
+            nameRes.add(readString(in));
+            names.add(readString(in));
+            types[i] = in.readInt();
+            ProfileTrigger[] profileTriggers = new ProfileTrigger[in.readInt()];
+            for (int j = 0; j < profileTriggers.length; j++) {
+                final int type = in.readInt();
+                final String id = readString(in);
+                final int state = in.readInt();
+                profileTriggers[j] = new ProfileTrigger(type, id, state, readString(in));
+            }
+            triggers.add(profileTriggers);
+        }
+        final int groupCount = in.readInt();
+
+        List<Entry> profiles = new ArrayList<Entry>(profileCount);
+        for (int i = 0; i < profileCount; i++) {
+            profiles.add(new Entry(uuids.get(i), nameRes.get(i), names.get(i), types[i],
+                    triggers.get(i), readBytes(in)));
+        }
+        List<byte[]> groups = new ArrayList<byte[]>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(readBytes(in));
+        }
+        return new Contents(activeUuid, profiles, groups);
+    }
+
+    /**
+     * Writes a store. Decoded profiles are serialized one at a time, undecoded profiles are
+     * copied as they are.
+     * @param groups The XML bodies of the notification groups
+     */
+    static void write(DataOutputStream out, Context context, UUID activeUuid,
+            Collection<Profile> profiles, Collection<Entry> entries,
+            Collection<byte[]> groups) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeUuid(out, activeUuid);
+
+        out.writeInt(profiles.size() + entries.size());
+        for (Profile p : profiles) {
+            final int nameResId = p.getNameResId();
+            writeHeader(out, p.getUuid(),
+                    nameResId > 0 ? context.getResources().getResourceEntryName(nameResId) : null,
+                    p.getName(), p.getProfileType(),
+                    p.getTriggers().toArray(new ProfileTrigger[0]));
+        }
+        for (Entry entry : entries) {
+            writeHeader(out, entry.uuid, entry.nameRes, entry.name, entry.profileType,
+                    entry.triggers);
+        }
+        out.writeInt(groups.size());
+
+        StringBuilder builder = new StringBuilder();
+        for (Profile p : profiles) {
+            builder.setLength(0);
+            p.getXmlString(builder, context);
+            writeBytes(out, builder.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Entry entry : entries) {
+            writeBytes(out, entry.body);
+        }
+        for (byte[] body : groups) {
+            writeBytes(out, body);
+        }
+    }
+
+    static Profile decodeProfile(Entry entry, Context context)
+            throws XmlPullParserException, IOException {
+        XmlPullParser xpp = newParser(entry.body, "profile");
+        return Profile.fromXml(xpp, context);
+    }
+
+    static NotificationGroup decodeGroup(byte[] body, Context context)
+            throws XmlPullParserException, IOException {
+        XmlPullParser xpp = newParser(body, "notificationGroup");
+        return NotificationGroup.fromXml(xpp, context);
+    }
+
+    private static XmlPullParser newParser(byte[] body, String rootTag)
+            throws XmlPullParserException, IOException {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(new ByteArrayInputStream(body), StandardCharsets.UTF_8.name());
+        int event = xpp.next();
+        while (event != XmlPullParser.START_TAG) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("Empty " + rootTag + " body");
+            }
+            event = xpp.next();
+        }
+        if (!rootTag.equals(xpp.getName())) {
+            throw new IOException("Expected " + rootTag + " but found " + xpp.getName());
+        }
+        return xpp;
+    }
+
+    private static void writeHeader(DataOutputStream out, UUID uuid, String nameRes,
+            String name, int profileType, ProfileTrigger[] triggers) throws IOException {
+        writeUuid(out, uuid);
+        writeString(out, nameRes);
+        writeString(out, name);
+        out.writeInt(profileType);
+        out.writeInt(triggers.length);
+        for (ProfileTrigger trigger : triggers) {
+            out.writeInt(trigger.getType());
+            writeString(out, trigger.getId());
+            out.writeInt(trigger.getState());
+            writeString(out, trigger.getName());
+        }
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        final long mostSigBits = in.readLong();
+        return new UUID(mostSigBits, in.readLong());
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid body length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -33,11 +33,18 @@ import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 import mokee.app.Profile;
 import mokee.app.Profile.ProfileTrigger;
 import mokee.app.ProfileManager;
 import mokee.providers.MKSettings;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -47,8 +54,47 @@ import java.util.UUID;
 public class ProfileTriggerHelper extends BroadcastReceiver {
     private static final String TAG = "ProfileTriggerHelper";
 
+    private static final UUID[] NO_PROFILES = new UUID[0];
+
     private Context mContext;
     private ProfileManagerService mManagerService;
+    private Handler mTriggerHandler;
+    private final long mCoalesceWindowMillis;
+
+    // Events received within the current window, in order. Only touched on the trigger thread.
+    private final ArrayList<TriggerEvent> mPendingEvents = new ArrayList<TriggerEvent>();
+
+    // Written on the trigger thread only, read by dump()
+    private volatile long mEventsReceived;
+    private volatile long mEventsCoalesced;
+    private volatile long mProfileSwitches;
+
+    private static final class TriggerEvent {
+        final int type;
+        final String id;
+        final int state;
+
+        TriggerEvent(int type, String id, int state) {
+            this.type = type;
+            this.id = id;
+            this.state = state;
+        }
+    }
+
+    private final Runnable mEvaluateTriggers = new Runnable() {
+        @Override
+        public void run() {
+            evaluatePendingEvents();
+        }
+    };
+
+    // Profile uuids by trigger id, keyed by triggerKey(type, state) of their triggers. Rebuilt
+    // whenever the profiles change and published as a whole, since it's read on the trigger
+    // thread. Holds uuids so that profiles which haven't been decoded yet can be indexed.
+    private volatile SparseArray<Map<String, UUID[]>> mTriggerIndex =
+            new SparseArray<Map<String, UUID[]>>();
+
+    private final ProfileScheduler mScheduler;
 
     private WifiManager mWifiManager;
     private String mLastConnectedSSID;
@@ -68,11 +114,25 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     }
     private final ContentObserver mSettingsObserver;
 
-    public ProfileTriggerHelper(Context context, Handler handler,
+    /**
+     * @param handler The handler to observe settings on.
+     * @param triggerHandler The handler to receive trigger events and switch profiles on.
+     */
+    public ProfileTriggerHelper(Context context, Handler handler, Handler triggerHandler,
             ProfileManagerService profileManagerService) {
         mContext = context;
         mManagerService = profileManagerService;
+        mTriggerHandler = triggerHandler;
+        mCoalesceWindowMillis = context.getResources().getInteger(
+                org.mokee.platform.internal.R.integer.config_profileTriggerCoalesceWindowMillis);
         mSettingsObserver = new SettingsObserver(handler);
+        mScheduler = new ProfileScheduler(context, triggerHandler,
+                new ProfileScheduler.Callback() {
+            @Override
+            public void onScheduleTransition(String id, int state) {
+                postTriggerEvent(Profile.TriggerType.SCHEDULE, id, state);
+            }
+        });
 
         mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
         mLastConnectedSSID = getActiveSSID();
@@ -81,6 +141,8 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         mIntentFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
         mIntentFilter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
         mIntentFilter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        mIntentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        mIntentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
        // mIntentFilter.addAction(AudioManager.A2DP_ROUTE_CHANGED_ACTION);
         updateEnabled();
 
@@ -94,13 +156,14 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                 MKSettings.System.SYSTEM_PROFILES_ENABLED, 1) == 1;
         if (enabled && !mFilterRegistered) {
             Log.v(TAG, "Enabling");
-            mContext.registerReceiver(this, mIntentFilter);
+            mContext.registerReceiver(this, mIntentFilter, null, mTriggerHandler);
             mFilterRegistered = true;
         } else if (!enabled && mFilterRegistered) {
             Log.v(TAG, "Disabling");
             mContext.unregisterReceiver(this);
             mFilterRegistered = false;
         }
+        mScheduler.setEnabled(enabled);
     }
 
     @Override
@@ -111,14 +174,14 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
             NetworkInfo.DetailedState state = networkInfo.getDetailedState();
             if (NetworkInfo.DetailedState.DISCONNECTED.equals(state)) {
-                checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                postTriggerEvent(Profile.TriggerType.WIFI, mLastConnectedSSID,
                         Profile.TriggerState.ON_DISCONNECT);
                 mLastConnectedSSID = WifiSsid.NONE;
             } else if (NetworkInfo.DetailedState.CONNECTED.equals(state)) {
                 String ssid = getActiveSSID();
                 if (ssid != null) {
                     mLastConnectedSSID = ssid;
-                    checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                    postTriggerEvent(Profile.TriggerType.WIFI, mLastConnectedSSID,
                             Profile.TriggerState.ON_CONNECT);
                 }
             }
@@ -128,7 +191,10 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                     ? Profile.TriggerState.ON_CONNECT : Profile.TriggerState.ON_DISCONNECT;
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-            checkTriggers(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
+            postTriggerEvent(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
+        } else if (action.equals(Intent.ACTION_TIME_CHANGED)
+                || action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+            mScheduler.onTimeChanged();
 /*        } else if (action.equals(AudioManager.A2DP_ROUTE_CHANGED_ACTION)) {
             BluetoothDevice device = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
@@ -141,47 +207,151 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         }
     }
 
-    private void checkTriggers(int type, String id, int newState) {
-        final Profile activeProfile = mManagerService.getActiveProfileInternal();
-        final UUID currentProfileUuid = activeProfile.getUuid();
-
-        boolean newProfileSelected = false;
-        for (Profile p : mManagerService.getProfileList()) {
-            final int profileTriggerState = p.getTriggerState(type, id);
-            if (newState != profileTriggerState) {
-                    continue;
+    /**
+     * Rebuilds the trigger index. Must be called whenever profiles are added, removed or
+     * replaced, which is also how trigger changes made with {@link Profile#setTrigger} reach
+     * the service.
+     * @param profileTriggers The triggers of every profile, by profile uuid.
+     */
+    public void updateTriggerIndex(Map<UUID, Collection<ProfileTrigger>> profileTriggers) {
+        SparseArray<Map<String, List<UUID>>> index =
+                new SparseArray<Map<String, List<UUID>>>();
+        Set<String> schedules = new ArraySet<String>();
+        for (Map.Entry<UUID, Collection<ProfileTrigger>> profile : profileTriggers.entrySet()) {
+            for (ProfileTrigger trigger : profile.getValue()) {
+                if (trigger.getType() == Profile.TriggerType.SCHEDULE) {
+                    schedules.add(trigger.getId());
+                }
+                final int key = triggerKey(trigger.getType(), trigger.getState());
+                Map<String, List<UUID>> ids = index.get(key);
+                if (ids == null) {
+                    ids = new HashMap<String, List<UUID>>();
+                    index.put(key, ids);
+                }
+                List<UUID> matches = ids.get(trigger.getId());
+                if (matches == null) {
+                    matches = new ArrayList<UUID>(1);
+                    ids.put(trigger.getId(), matches);
+                }
+                matches.add(profile.getKey());
             }
+        }
 
-            if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
-                newProfileSelected = true;
+        SparseArray<Map<String, UUID[]>> triggerIndex =
+                new SparseArray<Map<String, UUID[]>>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            Map<String, UUID[]> ids = new HashMap<String, UUID[]>();
+            for (Map.Entry<String, List<UUID>> entry : index.valueAt(i).entrySet()) {
+                ids.put(entry.getKey(), entry.getValue().toArray(NO_PROFILES));
             }
+            triggerIndex.put(index.keyAt(i), ids);
+        }
+        mTriggerIndex = triggerIndex;
+        mScheduler.updateSchedules(schedules);
+    }
+
+    private static int triggerKey(int type, int state) {
+        return (type << 8) | state;
+    }
+
+    private UUID[] getProfilesForTrigger(int type, String id, int state) {
+        Map<String, UUID[]> ids = mTriggerIndex.get(triggerKey(type, state));
+        UUID[] profiles = ids != null ? ids.get(id) : null;
+        return profiles != null ? profiles : NO_PROFILES;
+    }
+
+    /**
+     * Queues a trigger event. The first event starts a window, after which all events received
+     * in the meantime are evaluated together. Must be called on the trigger thread.
+     */
+    private void postTriggerEvent(int type, String id, int newState) {
+        mEventsReceived++;
+        if (!mPendingEvents.isEmpty()) {
+            mEventsCoalesced++;
         }
+        mPendingEvents.add(new TriggerEvent(type, id, newState));
 
-        if (!newProfileSelected) {
-            //Does the active profile actually cares about this event?
-            for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
-                final String triggerID = trigger.getId();
-                if (triggerID.equals(id)) {
-                    Intent intent
-                            = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-
-                    final int triggerState = trigger.getState();
-                    if ((newState == Profile.TriggerState.ON_CONNECT
-                            && triggerState == Profile.TriggerState.ON_CONNECT) ||
-                            (newState == Profile.TriggerState.ON_DISCONNECT
-                            && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
+        if (mCoalesceWindowMillis <= 0) {
+            evaluatePendingEvents();
+        } else if (mPendingEvents.size() == 1) {
+            mTriggerHandler.postDelayed(mEvaluateTriggers, mCoalesceWindowMillis);
+        }
+    }
+
+    /**
+     * Replays the pending events against the profile each of them would have left active, and
+     * then applies only the final one. A profile that stays active is selected again at most
+     * once if any of the events asked for it.
+     */
+    private void evaluatePendingEvents() {
+        mTriggerHandler.removeCallbacks(mEvaluateTriggers);
+        if (mPendingEvents.isEmpty()) {
+            return;
+        }
+
+        final Profile activeProfile = mManagerService.getActiveProfileInternal();
+        Profile selectedProfile = activeProfile;
+        boolean reselect = false;
+
+        for (TriggerEvent event : mPendingEvents) {
+            final UUID currentProfileUuid = selectedProfile.getUuid();
+            boolean newProfileSelected = false;
+            for (UUID uuid : getProfilesForTrigger(event.type, event.id, event.state)) {
+                if (!currentProfileUuid.equals(uuid)) {
+                    Profile p = mManagerService.getProfileByUuid(uuid);
+                    if (p != null) {
+                        selectedProfile = p;
+                        newProfileSelected = true;
                     }
-                    break;
                 }
             }
+            if (newProfileSelected) {
+                reselect = false;
+            } else {
+                reselect |= checkActiveTrigger(selectedProfile, event);
+            }
+        }
+        mPendingEvents.clear();
+
+        if (selectedProfile != activeProfile) {
+            mManagerService.setActiveProfileInternal(selectedProfile, true);
+            mProfileSwitches++;
+        } else if (reselect) {
+            activeProfile.doSelect(mContext, null);
+        }
+    }
 
+    /**
+     * Notifies about an event the given profile has a trigger for.
+     * @return Whether the profile should be selected again because of the event.
+     */
+    private boolean checkActiveTrigger(Profile profile, TriggerEvent event) {
+        //Does the active profile actually cares about this event?
+        final ProfileTrigger trigger = profile.getTrigger(event.type, event.id);
+        if (trigger == null) {
+            return false;
         }
+
+        Intent intent = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
+        intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, event.id);
+        intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, event.type);
+        intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, event.state);
+        mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+
+        final int triggerState = trigger.getState();
+        return (event.state == Profile.TriggerState.ON_CONNECT
+                && triggerState == Profile.TriggerState.ON_CONNECT) ||
+                (event.state == Profile.TriggerState.ON_DISCONNECT
+                && triggerState == Profile.TriggerState.ON_DISCONNECT);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Trigger events:");
+        pw.println("  Coalesce window: " + mCoalesceWindowMillis + "ms");
+        pw.println("  Received: " + mEventsReceived);
+        pw.println("  Coalesced: " + mEventsCoalesced);
+        pw.println("  Profile switches: " + mProfileSwitches);
+        mScheduler.dump(pw);
     }
 
     private String getActiveSSID() {
@@ -97,11 +97,10 @@ public class StyleInterfaceService extends MKSystemService {
             throw new IllegalArgumentException(packageName + " is not a valid package name!");
         }
 
-        boolean statusValue = MKSettings.System.putInt(mContext.getContentResolver(),
-                MKSettings.System.BERRY_GLOBAL_STYLE, mode);
-        boolean packageNameValue = MKSettings.System.putString(mContext.getContentResolver(),
-                MKSettings.System.BERRY_MANAGED_BY_APP, packageName);
-        return  statusValue && packageNameValue;
+        return MKSettings.System.edit(mContext.getContentResolver())
+                .putInt(MKSettings.System.BERRY_GLOBAL_STYLE, mode)
+                .putString(MKSettings.System.BERRY_MANAGED_BY_APP, packageName)
+                .commit();
     }
 
     private int getGlobalStyleInternal() {
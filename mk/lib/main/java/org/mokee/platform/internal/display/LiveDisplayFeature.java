@@ -30,6 +30,7 @@ import org.mokee.platform.internal.display.LiveDisplayService.State;
 import org.mokee.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.BitSet;
 
 import mokee.providers.MKSettings;
@@ -79,7 +80,7 @@ public abstract class LiveDisplayFeature {
             onUpdate();
         }
         if (flags == ALL_CHANGED) {
-            onSettingsChanged(null);
+            refreshSettings();
         }
     }
 
@@ -102,6 +103,17 @@ public abstract class LiveDisplayFeature {
         mSettingsObserver.register(settings);
     }
 
+    /**
+     * Reads all registered settings in a single round trip before the
+     * feature goes through them one by one.
+     */
+    private void refreshSettings() {
+        if (mSettingsObserver != null) {
+            mSettingsObserver.prefetch();
+        }
+        onSettingsChanged(null);
+    }
+
     protected final boolean getBoolean(String setting, boolean defaultValue) {
         return MKSettings.System.getIntForUser(mContext.getContentResolver(),
                 setting, (defaultValue ? 1 : 0), UserHandle.USER_CURRENT) == 1;
@@ -154,6 +166,8 @@ public abstract class LiveDisplayFeature {
 
     final class SettingsObserver extends UserContentObserver {
 
+        private final ArrayList<String> mSettingNames = new ArrayList<String>();
+
         public SettingsObserver(Handler handler) {
             super(handler);
         }
@@ -162,11 +176,24 @@ public abstract class LiveDisplayFeature {
             final ContentResolver cr = mContext.getContentResolver();
             for (Uri uri : uris) {
                 cr.registerContentObserver(uri, false, this, UserHandle.USER_ALL);
+
+                final String name = uri.getLastPathSegment();
+                if (MKSettings.System.getUriFor(name).equals(uri)) {
+                    mSettingNames.add(name);
+                }
             }
 
             observe();
         }
 
+        public void prefetch() {
+            if (!mSettingNames.isEmpty()) {
+                MKSettings.System.prefetchForUser(mContext.getContentResolver(),
+                        UserHandle.USER_CURRENT,
+                        mSettingNames.toArray(new String[mSettingNames.size()]));
+            }
+        }
+
         public void unregister() {
             mContext.getContentResolver().unregisterContentObserver(this);
             unobserve();
@@ -174,7 +201,7 @@ public abstract class LiveDisplayFeature {
 
         @Override
         protected void update() {
-            onSettingsChanged(null);
+            refreshSettings();
         }
 
         @Override
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2019, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Coalesces change notifications of the MK settings tables. Changes to a table of a user are
+ * collected for a short window after the first one, and then dispatched together on the
+ * notifier's looper, so that a burst of writes causes a single round of work per table.
+ * <p>
+ * Changes must only be posted once they are committed and visible to readers; the dispatch
+ * happens strictly afterwards, so observers always read the new values.
+ */
+final class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MSG_DISPATCH = 1;
+
+    /**
+     * Receives the coalesced changes of a table.
+     */
+    interface Callback {
+        /**
+         * Called on the notifier's looper once the window of a table has passed.
+         * @param tableName The table that changed.
+         * @param userId The id of the user the changes were made for.
+         * @param uris The distinct uris that changed within the window.
+         */
+        void onChange(String tableName, int userId, ArraySet<Uri> uris);
+    }
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final Callback mCallback;
+
+    // Keyed by user id, then by table name. Guarded by mPending.
+    private final SparseArray<ArrayMap<String, ArraySet<Uri>>> mPending =
+            new SparseArray<ArrayMap<String, ArraySet<Uri>>>();
+
+    /**
+     * @param looper The looper to dispatch changes on.
+     * @param windowMillis How long to collect changes for after the first one. Changes are
+     *     dispatched right away on the calling thread if this is not positive.
+     * @param callback The callback to dispatch changes to.
+     */
+    ChangeNotifier(Looper looper, long windowMillis, Callback callback) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DISPATCH) {
+                    dispatch((String) msg.obj, msg.arg1);
+                }
+            }
+        };
+        mWindowMillis = windowMillis;
+        mCallback = callback;
+    }
+
+    /**
+     * Posts committed changes to a table. The first change to a table starts its window.
+     * @param tableName The table that changed.
+     * @param userId The id of the user the changes were made for.
+     * @param uris The uris that changed.
+     */
+    void notifyChange(String tableName, int userId, Uri[] uris) {
+        if (mWindowMillis <= 0) {
+            ArraySet<Uri> changed = new ArraySet<Uri>(uris.length);
+            for (Uri uri : uris) {
+                changed.add(uri);
+            }
+            mCallback.onChange(tableName, userId, changed);
+            return;
+        }
+
+        synchronized (mPending) {
+            ArrayMap<String, ArraySet<Uri>> tables = mPending.get(userId);
+            if (tables == null) {
+                tables = new ArrayMap<String, ArraySet<Uri>>();
+                mPending.put(userId, tables);
+            }
+            ArraySet<Uri> pending = tables.get(tableName);
+            if (pending == null) {
+                pending = new ArraySet<Uri>();
+                tables.put(tableName, pending);
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(MSG_DISPATCH, userId, 0, tableName),
+                        mWindowMillis);
+            }
+            for (Uri uri : uris) {
+                pending.add(uri);
+            }
+        }
+    }
+
+    private void dispatch(String tableName, int userId) {
+        ArraySet<Uri> pending;
+        synchronized (mPending) {
+            ArrayMap<String, ArraySet<Uri>> tables = mPending.get(userId);
+            if (tables == null) {
+                return;
+            }
+            pending = tables.remove(tableName);
+            if (tables.isEmpty()) {
+                mPending.delete(userId);
+            }
+        }
+        if (pending == null) {
+            return;
+        }
+
+        if (LOCAL_LOGV) Log.v(TAG, "Dispatching " + pending.size() + " change(s) to "
+                + tableName + " for user " + userId);
+        mCallback.onChange(tableName, userId, pending);
+    }
+}
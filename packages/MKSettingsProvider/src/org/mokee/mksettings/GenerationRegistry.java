@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2019, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.os.Bundle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
+
+import mokee.providers.MKSettings;
+
+import java.io.IOException;
+
+/**
+ * Tracks a generation number for every setting in shared memory, so that clients of
+ * {@link MKSettings} can tell whether a cached value went stale without an IPC.
+ * <p>
+ * Each table of each user database is backed by one {@link MemoryIntArray}. Slot 0 holds the
+ * table generation, which is incremented by every write. The remaining slots are handed out to
+ * setting names as they are requested; names that arrive after the array is full share the
+ * table slot and therefore get invalidated by any write to the table.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "GenerationRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int TABLE_GENERATION_INDEX = 0;
+
+    private final Object mLock = new Object();
+
+    // Keyed by database user id, then by table name. Guarded by mLock.
+    private final SparseArray<ArrayMap<String, TableGenerations>> mGenerations =
+            new SparseArray<ArrayMap<String, TableGenerations>>();
+
+    private static final class TableGenerations {
+        final MemoryIntArray backingStore;
+        final ArrayMap<String, Integer> keyToIndex = new ArrayMap<String, Integer>();
+
+        TableGenerations(MemoryIntArray backingStore) {
+            this.backingStore = backingStore;
+        }
+    }
+
+    /**
+     * Adds the generation index and current generation of a setting to a call() result. If
+     * requested, the backing {@link MemoryIntArray} is attached as well; clients only need it
+     * once per table.
+     * @param bundle The call() result to add the generation data to.
+     * @param tableName The table the setting lives in.
+     * @param userId The id of the user owning the database.
+     * @param name The name of the setting.
+     * @param includeBackingStore Whether to attach the shared memory array.
+     */
+    void addGenerationData(Bundle bundle, String tableName, int userId, String name,
+            boolean includeBackingStore) {
+        synchronized (mLock) {
+            TableGenerations generations = getOrCreateLocked(tableName, userId);
+            if (generations == null) {
+                return;
+            }
+            try {
+                final int index = getKeyIndexLocked(generations, name);
+                if (includeBackingStore) {
+                    bundle.putParcelable(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            generations.backingStore);
+                }
+                bundle.putInt(MKSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                bundle.putInt(MKSettings.CALL_METHOD_GENERATION_KEY,
+                        generations.backingStore.get(index));
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyLocked(tableName, userId);
+            }
+        }
+    }
+
+    /**
+     * Adds the generation indices and current generations of several settings to a call()
+     * result, in the same order as their names.
+     * @see #addGenerationData(Bundle, String, int, String, boolean)
+     */
+    void addGenerationData(Bundle bundle, String tableName, int userId, String[] names,
+            boolean includeBackingStore) {
+        synchronized (mLock) {
+            TableGenerations generations = getOrCreateLocked(tableName, userId);
+            if (generations == null) {
+                return;
+            }
+            try {
+                int[] indices = new int[names.length];
+                int[] values = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    indices[i] = getKeyIndexLocked(generations, names[i]);
+                    values[i] = generations.backingStore.get(indices[i]);
+                }
+                if (includeBackingStore) {
+                    bundle.putParcelable(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            generations.backingStore);
+                }
+                bundle.putIntArray(MKSettings.CALL_METHOD_GENERATION_INDEX_KEY, indices);
+                bundle.putIntArray(MKSettings.CALL_METHOD_GENERATION_KEY, values);
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyLocked(tableName, userId);
+            }
+        }
+    }
+
+    /**
+     * Increments the generation of a single setting, as well as the table generation.
+     * @return Whether the table is tracked. Untracked tables have no clients relying on
+     *     generations, so callers must fall back to the table version system property.
+     */
+    boolean incrementGeneration(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            TableGenerations generations = getLocked(tableName, userId);
+            if (generations == null) {
+                return false;
+            }
+            try {
+                Integer index = generations.keyToIndex.get(name);
+                if (index != null) {
+                    incrementLocked(generations.backingStore, index);
+                }
+                incrementLocked(generations.backingStore, TABLE_GENERATION_INDEX);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error incrementing generation for " + name, e);
+                destroyLocked(tableName, userId);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Increments the generation of every setting in a table. Used for writes whose affected
+     * rows cannot be determined from their arguments.
+     * @return Whether the table is tracked.
+     */
+    boolean incrementAllGenerations(String tableName, int userId) {
+        synchronized (mLock) {
+            TableGenerations generations = getLocked(tableName, userId);
+            if (generations == null) {
+                return false;
+            }
+            try {
+                incrementAllLocked(generations);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error incrementing generations for " + tableName, e);
+                destroyLocked(tableName, userId);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a table currently hands out generations to clients.
+     */
+    boolean isTracked(String tableName, int userId) {
+        synchronized (mLock) {
+            return getLocked(tableName, userId) != null;
+        }
+    }
+
+    /**
+     * Invalidates every setting a removed user's clients may have cached and releases the
+     * shared memory backing that user's tables.
+     */
+    void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            ArrayMap<String, TableGenerations> tables = mGenerations.get(userId);
+            if (tables == null) {
+                return;
+            }
+            for (int i = tables.size() - 1; i >= 0; i--) {
+                String tableName = tables.keyAt(i);
+                try {
+                    incrementAllLocked(tables.valueAt(i));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error invalidating " + tableName + " for user " + userId, e);
+                }
+                destroyLocked(tableName, userId);
+            }
+        }
+    }
+
+    private TableGenerations getLocked(String tableName, int userId) {
+        ArrayMap<String, TableGenerations> tables = mGenerations.get(userId);
+        return tables != null ? tables.get(tableName) : null;
+    }
+
+    private TableGenerations getOrCreateLocked(String tableName, int userId) {
+        TableGenerations generations = getLocked(tableName, userId);
+        if (generations != null) {
+            return generations;
+        }
+
+        try {
+            generations = new TableGenerations(
+                    new MemoryIntArray(MemoryIntArray.getMaxSize()));
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating generation tracker", e);
+            return null;
+        }
+        // Reserve the table slot, so the next free index is always the map size
+        generations.keyToIndex.put(null, TABLE_GENERATION_INDEX);
+
+        ArrayMap<String, TableGenerations> tables = mGenerations.get(userId);
+        if (tables == null) {
+            tables = new ArrayMap<String, TableGenerations>();
+            mGenerations.put(userId, tables);
+        }
+        tables.put(tableName, generations);
+
+        if (LOCAL_LOGV) Log.v(TAG, "Created generation tracker for " + tableName
+                + " of user " + userId);
+        return generations;
+    }
+
+    private void destroyLocked(String tableName, int userId) {
+        ArrayMap<String, TableGenerations> tables = mGenerations.get(userId);
+        if (tables == null) {
+            return;
+        }
+        TableGenerations generations = tables.remove(tableName);
+        if (tables.isEmpty()) {
+            mGenerations.delete(userId);
+        }
+        if (generations != null) {
+            try {
+                generations.backingStore.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing generation tracker", e);
+            }
+        }
+    }
+
+    private static int getKeyIndexLocked(TableGenerations generations, String name)
+            throws IOException {
+        Integer index = generations.keyToIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        final int size = generations.keyToIndex.size();
+        if (size >= generations.backingStore.size()) {
+            // Out of slots, share the table generation
+            return TABLE_GENERATION_INDEX;
+        }
+        generations.keyToIndex.put(name, size);
+        generations.backingStore.set(size, 0);
+        if (LOCAL_LOGV) Log.v(TAG, "Assigned index " + size + " to " + name);
+        return size;
+    }
+
+    private static void incrementAllLocked(TableGenerations generations) throws IOException {
+        for (int i = generations.keyToIndex.size() - 1; i >= 0; i--) {
+            incrementLocked(generations.backingStore, generations.keyToIndex.valueAt(i));
+        }
+    }
+
+    private static void incrementLocked(MemoryIntArray backingStore, int index)
+            throws IOException {
+        backingStore.set(index, backingStore.get(index) + 1);
+    }
+}
@@ -34,6 +34,7 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
@@ -74,10 +75,49 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
 
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
+    private static final String LOOKUP_VALUE_SQL_FORMAT = "SELECT value FROM %s WHERE name=?";
+
+    private static final String INSERT_OR_REPLACE_SQL_FORMAT =
+            "INSERT OR REPLACE INTO %s(name,value) VALUES(?,?)";
+
+    private static final String DELETE_BY_NAME_SQL_FORMAT = "DELETE FROM %s WHERE name=?";
+
     private Context mContext;
     private int mUserHandle;
     private String mPublicSrcDir;
 
+    // Compiled statements of the provider's hot paths, keyed by table name. Each set is only
+    // valid for the database it was compiled against. Guarded by 'this'.
+    private final ArrayMap<String, TableStatements> mTableStatements =
+            new ArrayMap<String, TableStatements>();
+
+    /**
+     * The statements compiled for a single table. Each statement is guarded by itself, since
+     * bindings are shared by all users of a statement. Lookups and writes use separate
+     * statements, so that with write-ahead logging a lookup never waits for a write.
+     */
+    private static final class TableStatements {
+        final SQLiteDatabase db;
+        final SQLiteStatement lookupValue;
+        final SQLiteStatement insertOrReplace;
+        final SQLiteStatement deleteByName;
+
+        TableStatements(SQLiteDatabase db, String tableName) {
+            this.db = db;
+            lookupValue = db.compileStatement(String.format(LOOKUP_VALUE_SQL_FORMAT, tableName));
+            insertOrReplace = db.compileStatement(
+                    String.format(INSERT_OR_REPLACE_SQL_FORMAT, tableName));
+            deleteByName = db.compileStatement(
+                    String.format(DELETE_BY_NAME_SQL_FORMAT, tableName));
+        }
+
+        void close() {
+            lookupValue.close();
+            insertOrReplace.close();
+            deleteByName.close();
+        }
+    }
+
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
@@ -106,6 +146,9 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
         mContext = context;
         mUserHandle = userId;
 
+        // Let call() lookups and queries proceed while a write is in progress
+        setWriteAheadLoggingEnabled(true);
+
         try {
             String packageName = mContext.getPackageName();
             mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
@@ -157,6 +200,92 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
         db.execSQL(createIndexSql);
     }
 
+    /**
+     * Looks up the value of a single setting using a precompiled statement.
+     * @param tableName The table to look in.
+     * @param name The name of the setting.
+     * @return The value of the setting, which may be null.
+     * @throws SQLiteDoneException if the setting does not exist.
+     */
+    public String lookupValue(String tableName, String name) {
+        SQLiteStatement stmt = getTableStatements(tableName).lookupValue;
+        synchronized (stmt) {
+            stmt.bindString(1, name);
+            try {
+                return stmt.simpleQueryForString();
+            } finally {
+                stmt.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Inserts a setting or replaces its value using a precompiled statement.
+     * @param tableName The table to write to.
+     * @param name The name of the setting.
+     * @param value The new value of the setting, which may be null.
+     * @return The row id of the setting, or -1 on failure.
+     */
+    public long insertOrReplace(String tableName, String name, String value) {
+        SQLiteStatement stmt = getTableStatements(tableName).insertOrReplace;
+        synchronized (stmt) {
+            stmt.bindString(1, name);
+            if (value != null) {
+                stmt.bindString(2, value);
+            } else {
+                stmt.bindNull(2);
+            }
+            try {
+                return stmt.executeInsert();
+            } finally {
+                stmt.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Deletes a single setting using a precompiled statement.
+     * @param tableName The table to delete from.
+     * @param name The name of the setting.
+     * @return The number of rows deleted.
+     */
+    public int deleteByName(String tableName, String name) {
+        SQLiteStatement stmt = getTableStatements(tableName).deleteByName;
+        synchronized (stmt) {
+            stmt.bindString(1, name);
+            try {
+                return stmt.executeUpdateDelete();
+            } finally {
+                stmt.clearBindings();
+            }
+        }
+    }
+
+    private TableStatements getTableStatements(String tableName) {
+        final SQLiteDatabase db = getWritableDatabase();
+        synchronized (this) {
+            TableStatements statements = mTableStatements.get(tableName);
+            if (statements == null || statements.db != db) {
+                // First use, or the database has been reopened since
+                if (statements != null) {
+                    statements.close();
+                }
+                statements = new TableStatements(db, tableName);
+                mTableStatements.put(tableName, statements);
+            }
+            return statements;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < mTableStatements.size(); i++) {
+            mTableStatements.valueAt(i).close();
+        }
+        mTableStatements.clear();
+        super.close();
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (LOCAL_LOGV) Log.d(TAG, "Upgrading from version: " + oldVersion + " to " + newVersion);
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2019, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Write-through, in-memory copy of the MK settings tables. Each table of each user database is
+ * loaded from its {@link MKDatabaseHelper} the first time it is read, and is kept up to date by
+ * the provider's write paths so that call() lookups never have to touch SQLite.
+ */
+final class MKSettingsCache {
+    private static final String TAG = "MKSettingsCache";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String[] NAME_VALUE_PROJECTION = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE
+    };
+
+    // Keyed by database user id, then by table name. Guarded by 'this'. Tables are loaded with
+    // the lock held, so a write committed during a load is applied to the table afterwards.
+    private final SparseArray<ArrayMap<String, HashMap<String, String>>> mTables =
+            new SparseArray<ArrayMap<String, HashMap<String, String>>>();
+
+    /**
+     * Looks up a setting, loading the table from the database if it is not cached yet.
+     * @param userId The id of the user owning the database.
+     * @param tableName The table to look in.
+     * @param name The name of the setting.
+     * @param dbHelper The database helper to load the table from on a miss.
+     * @return The value of the setting, or null if it does not exist.
+     */
+    synchronized String get(int userId, String tableName, String name,
+            MKDatabaseHelper dbHelper) {
+        HashMap<String, String> table = getTableLocked(userId, tableName);
+        if (table == null) {
+            table = loadTableLocked(userId, tableName, dbHelper);
+        }
+        return table.get(name);
+    }
+
+    /**
+     * Looks up several settings at once, loading the table from the database if it is not
+     * cached yet.
+     * @param userId The id of the user owning the database.
+     * @param tableName The table to look in.
+     * @param names The names of the settings.
+     * @param dbHelper The database helper to load the table from on a miss.
+     * @return The values of the settings in the same order as their names, with null for
+     *     settings that do not exist.
+     */
+    synchronized String[] get(int userId, String tableName, String[] names,
+            MKDatabaseHelper dbHelper) {
+        HashMap<String, String> table = getTableLocked(userId, tableName);
+        if (table == null) {
+            table = loadTableLocked(userId, tableName, dbHelper);
+        }
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = table.get(names[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Updates a single value after it has been written to the database. Tables which have not
+     * been loaded yet are left alone, since they will read the new value when they are loaded.
+     */
+    synchronized void put(int userId, String tableName, String name, String value) {
+        HashMap<String, String> table = getTableLocked(userId, tableName);
+        if (table != null) {
+            table.put(name, value);
+        }
+    }
+
+    /**
+     * Drops a cached table so that it is reloaded from the database on next access. Used for
+     * writes whose affected rows cannot be determined from their arguments.
+     */
+    synchronized void invalidate(int userId, String tableName) {
+        ArrayMap<String, HashMap<String, String>> tables = mTables.get(userId);
+        if (tables != null) {
+            tables.remove(tableName);
+        }
+    }
+
+    /**
+     * Drops every cached table of a user.
+     */
+    synchronized void invalidateUser(int userId) {
+        mTables.delete(userId);
+    }
+
+    private HashMap<String, String> getTableLocked(int userId, String tableName) {
+        ArrayMap<String, HashMap<String, String>> tables = mTables.get(userId);
+        return tables != null ? tables.get(tableName) : null;
+    }
+
+    private HashMap<String, String> loadTableLocked(int userId, String tableName,
+            MKDatabaseHelper dbHelper) {
+        HashMap<String, String> table = new HashMap<String, String>();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        Cursor cursor = db.query(tableName, NAME_VALUE_PROJECTION, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                table.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayMap<String, HashMap<String, String>> tables = mTables.get(userId);
+        if (tables == null) {
+            tables = new ArrayMap<String, HashMap<String, String>>();
+            mTables.put(userId, tables);
+        }
+        tables.put(tableName, table);
+
+        if (LOCAL_LOGV) Log.d(TAG, "Loaded " + table.size() + " row(s) from " + tableName
+                + " for user " + userId);
+        return table;
+    }
+}
@@ -32,17 +32,23 @@ import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -53,6 +59,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -64,6 +75,13 @@ public class MKSettingsProvider extends ContentProvider {
 
     private static final boolean USER_CHECK_THROWS = true;
 
+    // Upper bound on the number of users migrated at the same time
+    private static final int MAX_MIGRATION_THREADS = 4;
+
+    private static final String[] LEGACY_SETTINGS_PROJECTION = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE
+    };
+
     public static final String PREF_HAS_MIGRATED_MK_SETTINGS =
             "migrated_settings_to_mko-mr1";
 
@@ -72,6 +90,16 @@ public class MKSettingsProvider extends ContentProvider {
     // Each defined user has their own settings
     protected final SparseArray<MKDatabaseHelper> mDbHelpers = new SparseArray<MKDatabaseHelper>();
 
+    // In-memory copy of the tables, used to serve call() lookups without querying SQLite
+    private final MKSettingsCache mSettingsCache = new MKSettingsCache();
+
+    // Held by writers across their database write and the matching cache update, so that
+    // the cache sees writes in database order. Readers never take it.
+    private final Object mWriteLock = new Object();
+
+    // Per-setting generations shared with MKSettings clients to validate their caches
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -82,6 +110,7 @@ public class MKSettingsProvider extends ContentProvider {
 
     private static final String ITEM_MATCHER = "/*";
     private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
+    private static final String NAME_SELECTION_COMPACT = Settings.NameValueTable.NAME + "=?";
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -103,6 +132,7 @@ public class MKSettingsProvider extends ContentProvider {
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
+    private ChangeNotifier mChangeNotifier;
 
     @Override
     public boolean onCreate() {
@@ -110,6 +140,17 @@ public class MKSettingsProvider extends ContentProvider {
 
         mUserManager = UserManager.get(getContext());
 
+        HandlerThread notifierThread = new HandlerThread(TAG + "Notifier");
+        notifierThread.start();
+        mChangeNotifier = new ChangeNotifier(notifierThread.getLooper(),
+                getContext().getResources().getInteger(R.integer.config_notifyChangeWindowMillis),
+                new ChangeNotifier.Callback() {
+                    @Override
+                    public void onChange(String tableName, int userId, ArraySet<Uri> uris) {
+                        dispatchChange(tableName, userId, uris);
+                    }
+                });
+
         establishDbTracking(UserHandle.USER_OWNER);
 
         mUriBuilder = new Uri.Builder();
@@ -150,53 +191,134 @@ public class MKSettingsProvider extends ContentProvider {
         if (!hasMigratedMKSettings) {
             long startTime = System.currentTimeMillis();
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateMKSettingsForUser(user.id);
-            }
+            migrateMKSettingsForUsers(mUserManager.getUsers());
 
             mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_MK_SETTINGS, true).commit();
 
-            // TODO: Add this as part of a boot message to the UI
             long timeDiffMillis = System.currentTimeMillis() - startTime;
-            if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
+            Log.i(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
+        }
+    }
+
+    /**
+     * Migrates MK settings for several users in parallel, and waits for all of them to finish.
+     * Progress is shown as a boot message, since this runs while the device is upgrading.
+     * @param users The users to run MK settings migration for.
+     */
+    private void migrateMKSettingsForUsers(List<UserInfo> users) {
+        final int userCount = users.size();
+        if (userCount == 0) {
+            return;
+        }
+
+        final AtomicInteger usersMigrated = new AtomicInteger();
+        showMigrationProgress(0, userCount);
+
+        // Reading the legacy settings from SettingsProvider and opening the databases of the
+        // users overlap; only the inserts take turns, on mWriteLock
+        final int threadCount = Math.min(userCount, MAX_MIGRATION_THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> migrations = new ArrayList<Future<?>>(userCount);
+        for (final UserInfo user : users) {
+            migrations.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long startTime = SystemClock.elapsedRealtime();
+                    int rowsMigrated = migrateMKSettingsForUser(user.id);
+                    Log.i(TAG, "Migrated " + rowsMigrated + " row(s) for user " + user.id
+                            + " in " + (SystemClock.elapsedRealtime() - startTime)
+                            + " milliseconds");
+                    showMigrationProgress(usersMigrated.incrementAndGet(), userCount);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        RuntimeException failure = null;
+        for (Future<?> migration : migrations) {
+            try {
+                migration.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while migrating MK settings", e);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to migrate MK settings", e.getCause());
+                if (failure == null) {
+                    failure = new IllegalStateException("Failed to migrate MK settings",
+                            e.getCause());
+                }
+            }
+        }
+
+        // Leave the migration to be retried on next boot, as it would have been when running
+        // the users one by one
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void showMigrationProgress(int usersMigrated, int userCount) {
+        final CharSequence message = getContext().getString(
+                R.string.migration_boot_message, usersMigrated, userCount);
+        try {
+            ActivityManager.getService().showBootMessage(message, false);
+        } catch (RemoteException e) {
+            // Not fatal, the migration goes on without a message
         }
     }
 
     /**
      * Migrates MK settings for a specific user.
      * @param userId The id of the user to run MK settings migration for.
+     * @return Number of rows migrated.
      */
-    private void migrateMKSettingsForUser(int userId) {
-        synchronized (this) {
-            if (LOCAL_LOGV) Log.d(TAG, "MK settings will be migrated for user id: " + userId);
+    private int migrateMKSettingsForUser(int userId) {
+        if (LOCAL_LOGV) Log.d(TAG, "MK settings will be migrated for user id: " + userId);
 
+        final boolean reopen;
+        synchronized (this) {
             // Rename database files (if needed)
             MKDatabaseHelper dbHelper = mDbHelpers.get(userId);
+            reopen = dbHelper != null;
             if (dbHelper != null) {
                 dbHelper.close();
                 mDbHelpers.delete(userId);
+                mSettingsCache.invalidateUser(userId);
+                mGenerationRegistry.incrementAllGenerations(
+                        MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, userId);
+                mGenerationRegistry.incrementAllGenerations(
+                        MKDatabaseHelper.MKTableNames.TABLE_SECURE, userId);
+                mGenerationRegistry.incrementAllGenerations(
+                        MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, userId);
             }
+        }
+        if (reopen) {
+            // Opens the database without the provider lock, so that users open in parallel
+            establishDbTracking(userId);
+        }
 
-            if (dbHelper != null) {
-                establishDbTracking(userId);
-                dbHelper = null;
-            }
+        // The tables are migrated without holding the provider lock, so that several users
+        // can be migrated at the same time
 
-            // Migrate system settings
-            int rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, MKSettings.System.LEGACY_SYSTEM_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK system table");
+        // Migrate system settings
+        int rowsMigrated = migrateMKSettingsForTable(userId,
+                MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, MKSettings.System.LEGACY_SYSTEM_SETTINGS);
+        if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK system table");
+        int totalRowsMigrated = rowsMigrated;
 
-            // Migrate secure settings
-            rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_SECURE, MKSettings.Secure.LEGACY_SECURE_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK secure table");
+        // Migrate secure settings
+        rowsMigrated = migrateMKSettingsForTable(userId,
+                MKDatabaseHelper.MKTableNames.TABLE_SECURE, MKSettings.Secure.LEGACY_SECURE_SETTINGS);
+        if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK secure table");
+        totalRowsMigrated += rowsMigrated;
 
-            // Migrate global settings
-            rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, MKSettings.Global.LEGACY_GLOBAL_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK global table");
-        }
+        // Migrate global settings
+        rowsMigrated = migrateMKSettingsForTable(userId,
+                MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, MKSettings.Global.LEGACY_GLOBAL_SETTINGS);
+        if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK global table");
+        totalRowsMigrated += rowsMigrated;
+
+        return totalRowsMigrated;
     }
 
     /**
@@ -207,25 +329,13 @@ public class MKSettingsProvider extends ContentProvider {
      * @return Number of rows migrated.
      */
     private int migrateMKSettingsForTable(int userId, String tableName, String[] settings) {
-        ContentResolver contentResolver = getContext().getContentResolver();
         ContentValues[] contentValues = new ContentValues[settings.length];
+        String[] settingsValues = getLegacySettingsForUser(userId, tableName, settings);
 
         int migrateSettingsCount = 0;
-        for (String settingsKey : settings) {
-            String settingsValue = null;
-
-            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
+        for (int i = 0; i < settings.length; i++) {
+            final String settingsKey = settings[i];
+            final String settingsValue = settingsValues[i];
 
             if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
                     + settingsValue);
@@ -254,6 +364,67 @@ public class MKSettingsProvider extends ContentProvider {
         return rowsInserted;
     }
 
+    /**
+     * Reads the values of legacy {@link Settings} keys for a specific user. The whole legacy
+     * table is read with a single query rather than one IPC per key. Keys that {@link Settings}
+     * redirects to another table, and all keys if the query fails, are read one by one.
+     * @param userId The id of the user to read the settings of.
+     * @param tableName The name of the MK table the settings are migrated to.
+     * @param settings An array of keys to read from {@link Settings}
+     * @return The values of the keys in the same order, with null for keys that are not set.
+     */
+    private String[] getLegacySettingsForUser(int userId, String tableName, String[] settings) {
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        Uri legacyUri = null;
+        Set<String> movedSettings = new ArraySet<String>();
+        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+            legacyUri = Settings.System.CONTENT_URI;
+            Settings.System.getMovedToSecureSettings(movedSettings);
+            Settings.System.getMovedToGlobalSettings(movedSettings);
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+            legacyUri = Settings.Secure.CONTENT_URI;
+            Settings.Secure.getMovedToGlobalSettings(movedSettings);
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
+            legacyUri = Settings.Global.CONTENT_URI;
+        }
+
+        Map<String, String> legacySettings = null;
+        if (legacyUri != null) {
+            Cursor cursor = contentResolver.query(
+                    ContentProvider.maybeAddUserId(legacyUri, userId),
+                    LEGACY_SETTINGS_PROJECTION, null, null, null);
+            if (cursor != null) {
+                try {
+                    legacySettings = new HashMap<String, String>(cursor.getCount());
+                    while (cursor.moveToNext()) {
+                        legacySettings.put(cursor.getString(0), cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        String[] settingsValues = new String[settings.length];
+        for (int i = 0; i < settings.length; i++) {
+            final String settingsKey = settings[i];
+            if (legacySettings != null && !movedSettings.contains(settingsKey)) {
+                settingsValues[i] = legacySettings.get(settingsKey);
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+                settingsValues[i] = Settings.System.getStringForUser(contentResolver,
+                        settingsKey, userId);
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+                settingsValues[i] = Settings.Secure.getStringForUser(contentResolver,
+                        settingsKey, userId);
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
+                settingsValues[i] = Settings.Global.getStringForUser(contentResolver,
+                        settingsKey, userId);
+            }
+        }
+        return settingsValues;
+    }
+
     private List<String> delimitedStringToList(String s, String delimiter) {
         List<String> list = new ArrayList<String>();
         if (!TextUtils.isEmpty(s)) {
@@ -278,6 +449,11 @@ public class MKSettingsProvider extends ContentProvider {
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            mSettingsCache.invalidateUser(userId);
+            mGenerationRegistry.onUserRemoved(userId);
+            // The provider shares its process with most of the readers of other users'
+            // settings, so drop their cached copies right away
+            MKSettings.onUserRemoved(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -308,20 +484,32 @@ public class MKSettingsProvider extends ContentProvider {
 
             return null;
         } else if (MKSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER.equals(method)) {
-            migrateMKSettingsForUser(callingUserId);
+            long startTime = SystemClock.elapsedRealtime();
+            int rowsMigrated = migrateMKSettingsForUser(callingUserId);
+            Log.i(TAG, "Migrated " + rowsMigrated + " row(s) for user " + callingUserId
+                    + " in " + (SystemClock.elapsedRealtime() - startTime) + " milliseconds");
 
             return null;
         }
 
         // Get methods
         if (MKSettings.CALL_METHOD_GET_SYSTEM.equals(method)) {
-            return lookupSingleValue(callingUserId, MKSettings.System.CONTENT_URI, request);
+            return lookupSingleValue(callingUserId, MKSettings.System.CONTENT_URI, request, args);
         }
         else if (MKSettings.CALL_METHOD_GET_SECURE.equals(method)) {
-            return lookupSingleValue(callingUserId, MKSettings.Secure.CONTENT_URI, request);
+            return lookupSingleValue(callingUserId, MKSettings.Secure.CONTENT_URI, request, args);
         }
         else if (MKSettings.CALL_METHOD_GET_GLOBAL.equals(method)) {
-            return lookupSingleValue(callingUserId, MKSettings.Global.CONTENT_URI, request);
+            return lookupSingleValue(callingUserId, MKSettings.Global.CONTENT_URI, request, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_MANY_SYSTEM.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.System.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_MANY_SECURE.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.Secure.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_MANY_GLOBAL.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.Global.CONTENT_URI, args);
         }
 
         // Put methods - new value is in the args bundle under the key named by
@@ -331,12 +519,27 @@ public class MKSettingsProvider extends ContentProvider {
 
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || MKSettings.CALL_METHOD_PUT_MANY_SYSTEM.equals(method)) {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
+        // Put many methods
+        if (MKSettings.CALL_METHOD_PUT_MANY_SYSTEM.equals(method)) {
+            return countResult(
+                    insertManyForUser(callingUserId, MKSettings.System.CONTENT_URI, args));
+        }
+        else if (MKSettings.CALL_METHOD_PUT_MANY_SECURE.equals(method)) {
+            return countResult(
+                    insertManyForUser(callingUserId, MKSettings.Secure.CONTENT_URI, args));
+        }
+        else if (MKSettings.CALL_METHOD_PUT_MANY_GLOBAL.equals(method)) {
+            return countResult(
+                    insertManyForUser(callingUserId, MKSettings.Global.CONTENT_URI, args));
+        }
+
         // Put methods
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
@@ -365,34 +568,83 @@ public class MKSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Looks up a single value for a specific user, uri, and key.
+     * Looks up a single value for a specific user, uri, and key. Values are served from
+     * {@link MKSettingsCache}, which loads the table from the database on first access.
      * @param userId The id of the user to perform the lookup for.
      * @param uri The uri for which table to perform the lookup in.
      * @param key The key to perform the lookup with.
+     * @param args The call() arguments. If they request generation tracking, the generation
+     *     data of the key is added to the result.
      * @return A single value stored in a {@link Bundle}.
      */
-    private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+    private Bundle lookupSingleValue(int userId, Uri uri, String key, Bundle args) {
+        String tableName = getTableNameFromUri(uri);
+        int dbUserId = getUserIdForTable(tableName, userId);
+
+        // Writers update the value before bumping its generation, so taking the generation
+        // first can only pair it with a newer value, which the next lookup refreshes
+        Bundle result = null;
+        if (args != null && args.containsKey(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            result = new Bundle();
+            mGenerationRegistry.addGenerationData(result, tableName, dbUserId, key,
+                    args.getBoolean(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY));
+        }
+
+        String value;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
-
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
+            value = mSettingsCache.get(dbUserId, tableName, key,
+                    getOrEstablishDatabase(dbUserId));
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
 
-        return NULL_SETTING;
+        if (result != null) {
+            result.putString(Settings.NameValueTable.VALUE, value);
+            return result;
+        }
+
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    }
+
+    /**
+     * Looks up several values for a specific user and uri in one call.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call() arguments, holding the keys to look up under
+     *     {@link MKSettings#CALL_METHOD_NAMES_KEY}. If they request generation tracking, the
+     *     generation data of the keys is added to the result.
+     * @return The values in the same order as the keys, including null values for keys that
+     *     are not set, stored in a {@link Bundle}.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] names = args != null
+                ? args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY) : null;
+        if (names == null) {
+            throw new IllegalArgumentException("Keys cannot be null");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        int dbUserId = getUserIdForTable(tableName, userId);
+
+        // Take the generations before the values, see lookupSingleValue()
+        Bundle result = new Bundle();
+        if (args.containsKey(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            mGenerationRegistry.addGenerationData(result, tableName, dbUserId, names,
+                    args.getBoolean(MKSettings.CALL_METHOD_TRACK_GENERATION_KEY));
+        }
+
+        String[] values;
+        try {
+            values = mSettingsCache.get(dbUserId, tableName, names,
+                    getOrEstablishDatabase(dbUserId));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+
+        result.putStringArray(MKSettings.CALL_METHOD_VALUES_KEY, values);
+        return result;
     }
 
     @Override
@@ -423,6 +675,29 @@ public class MKSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUriMatchCode(code);
 
         MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+
+        // Single value lookups, as sent by the MKSettings fallback path, use a precompiled
+        // statement rather than building a new query each time
+        if (projection != null && projection.length == 1
+                && Settings.NameValueTable.VALUE.equals(projection[0])) {
+            String name = null;
+            if (isItemUri(code)) {
+                name = uri.getLastPathSegment();
+            } else if (isNameSelection(selection) && selectionArgs != null
+                    && selectionArgs.length == 1) {
+                name = selectionArgs[0];
+            }
+            if (name != null) {
+                MatrixCursor cursor = new MatrixCursor(projection, 1);
+                try {
+                    cursor.addRow(new Object[] { dbHelper.lookupValue(tableName, name) });
+                } catch (SQLiteDoneException e) {
+                    // No such setting, return an empty cursor
+                }
+                return cursor;
+            }
+        }
+
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
@@ -480,28 +755,42 @@ public class MKSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int dbUserId = getUserIdForTable(tableName, userId);
+        MKDatabaseHelper dbHelper = getOrEstablishDatabase(dbUserId);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
+        // Hold the write lock across the write so that concurrent writers to the same key
+        // update the cache in the same order as the database
+        synchronized (mWriteLock) {
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+
+                    long rowId = insertRow(dbHelper, db, tableName, value);
+
+                    if (rowId >= 0) {
+                        numRowsAffected++;
+                    } else {
+                        return 0;
+                    }
                 }
 
-                long rowId = db.insert(tableName, null, value);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
 
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
+            for (ContentValues value : values) {
+                if (value != null) {
+                    final String name = value.getAsString(Settings.NameValueTable.NAME);
+                    mSettingsCache.put(dbUserId, tableName, name,
+                            value.getAsString(Settings.NameValueTable.VALUE));
+                    mGenerationRegistry.incrementGeneration(tableName, dbUserId, name);
                 }
             }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
         }
 
         if (numRowsAffected > 0) {
@@ -537,7 +826,8 @@ public class MKSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int dbUserId = getUserIdForTable(tableName, userId);
+        MKDatabaseHelper dbHelper = getOrEstablishDatabase(dbUserId);
 
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
@@ -549,7 +839,14 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        long rowId;
+        synchronized (mWriteLock) {
+            rowId = insertRow(dbHelper, db, tableName, values);
+            if (rowId > -1) {
+                mSettingsCache.put(dbUserId, tableName, name, value);
+                mGenerationRegistry.incrementGeneration(tableName, dbUserId, name);
+            }
+        }
 
         Uri returnUri = null;
         if (rowId > -1) {
@@ -562,6 +859,96 @@ public class MKSettingsProvider extends ContentProvider {
         return returnUri;
     }
 
+    /**
+     * Wraps the number of rows written by a put-many call() into its result.
+     */
+    private static Bundle countResult(int count) {
+        Bundle result = new Bundle();
+        result.putInt(MKSettings.CALL_METHOD_COUNT_KEY, count);
+        return result;
+    }
+
+    /**
+     * Writes several settings for a specific user in a single transaction. Unlike
+     * {@link #bulkInsertForUser}, observers of the individual settings are notified, but the
+     * table version is bumped only once.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to insert into.
+     * @param args The call() arguments holding the names and values of the settings.
+     * @return Number of rows inserted.
+     */
+    private int insertManyForUser(int userId, Uri uri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY);
+        final String[] values = (args == null)
+                ? null : args.getStringArray(MKSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Keys and values must be given in pairs");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        // Validate all values up front, so that an invalid one fails the whole batch
+        for (int i = 0; i < names.length; i++) {
+            if (MKDatabaseHelper.MKTableNames.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names[i], values[i]);
+            } else if (MKDatabaseHelper.MKTableNames.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names[i], values[i]);
+            }
+        }
+
+        final int dbUserId = getUserIdForTable(tableName, userId);
+        MKDatabaseHelper dbHelper = getOrEstablishDatabase(dbUserId);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        synchronized (mWriteLock) {
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    if (dbHelper.insertOrReplace(tableName, names[i], values[i]) < 0) {
+                        return 0;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                mSettingsCache.put(dbUserId, tableName, names[i], values[i]);
+                mGenerationRegistry.incrementGeneration(tableName, dbUserId, names[i]);
+            }
+        }
+
+        if (names.length > 0) {
+            Uri[] uris = new Uri[names.length];
+            for (int i = 0; i < names.length; i++) {
+                uris[i] = Uri.withAppendedPath(uri, names[i]);
+            }
+            notifyChange(uris, tableName, userId);
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.length + " row(s) inserted");
+        }
+
+        return names.length;
+    }
+
+    /**
+     * Writes a single row, using the precompiled insert-or-replace statement of the database
+     * for plain name/value pairs.
+     * @return The row id of the setting, or -1 on failure.
+     */
+    private long insertRow(MKDatabaseHelper dbHelper, SQLiteDatabase db, String tableName,
+            ContentValues values) {
+        final String name = values.getAsString(Settings.NameValueTable.NAME);
+        final boolean hasValue = values.containsKey(Settings.NameValueTable.VALUE);
+        if (name != null && values.size() == (hasValue ? 2 : 1)) {
+            return dbHelper.insertOrReplace(tableName, name,
+                    values.getAsString(Settings.NameValueTable.VALUE));
+        }
+        return db.insert(tableName, null, values);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (uri == null) {
@@ -577,11 +964,27 @@ public class MKSettingsProvider extends ContentProvider {
             checkWritePermissions(tableName);
 
             int callingUserId = UserHandle.getCallingUserId();
-            MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
-
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            final int dbUserId = getUserIdForTable(tableName, callingUserId);
+            MKDatabaseHelper dbHelper = getOrEstablishDatabase(dbUserId);
+
+            if (isNameSelection(selection) && selectionArgs.length == 1) {
+                final String name = selectionArgs[0];
+                synchronized (mWriteLock) {
+                    numRowsAffected = dbHelper.deleteByName(tableName, name);
+                    if (numRowsAffected > 0) {
+                        mSettingsCache.put(dbUserId, tableName, name, null);
+                        mGenerationRegistry.incrementGeneration(tableName, dbUserId, name);
+                    }
+                }
+            } else {
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                if (numRowsAffected > 0) {
+                    // The selection may match any number of rows, so reload the table lazily
+                    mSettingsCache.invalidate(dbUserId, tableName);
+                    mGenerationRegistry.incrementAllGenerations(tableName, dbUserId);
+                }
+            }
 
             if (numRowsAffected > 0) {
                 notifyChange(uri, tableName, callingUserId);
@@ -620,13 +1023,16 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         int callingUserId = UserHandle.getCallingUserId();
-        MKDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
+        final int dbUserId = getUserIdForTable(tableName, callingUserId);
+        MKDatabaseHelper dbHelper = getOrEstablishDatabase(dbUserId);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
 
         if (numRowsAffected > 0) {
+            // The selection may match any number of rows, so reload the table lazily
+            mSettingsCache.invalidate(dbUserId, tableName);
+            mGenerationRegistry.incrementAllGenerations(tableName, dbUserId);
             notifyChange(uri, tableName, callingUserId);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
@@ -716,6 +1122,16 @@ public class MKSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns whether a selection matches a single row by name
+     * @param selection
+     * @return
+     */
+    private static boolean isNameSelection(String selection) {
+        return selection != null
+                && NAME_SELECTION_COMPACT.equals(selection.replace(" ", ""));
+    }
+
     /**
      * Returns whether the matched uri code refers to an item in a table
      * @param code
@@ -783,35 +1199,65 @@ public class MKSettingsProvider extends ContentProvider {
 
     /**
      * Modify setting version for an updated table before notifying of change. The
-     * {@link MKSettings} class uses these to provide client-side caches.
+     * {@link MKSettings} class uses these to provide client-side caches. Tables tracked by the
+     * {@link GenerationRegistry} have already had the generations of the changed settings
+     * incremented, so their version is left alone to avoid invalidating unrelated settings.
      * @param uri to send notifications for
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
+        notifyChange(new Uri[] { uri }, tableName, userId);
+    }
+
+    /**
+     * Modify setting version for an updated table once, then notify of change for each of
+     * several uris of that table. The version is modified right away, since it is the only
+     * invalidation of client caches for untracked tables; the notifications are deferred to
+     * the {@link ChangeNotifier}, which coalesces the changes made to a table within a short
+     * window.
+     * @param uris to send notifications for
+     * @param userId
+     * @see #notifyChange(Uri, String, int)
+     */
+    private void notifyChange(Uri[] uris, String tableName, int userId) {
         String property = null;
-        final boolean isGlobal = tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL);
         if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
             property = MKSettings.System.SYS_PROP_MK_SETTING_VERSION;
         } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
             property = MKSettings.Secure.SYS_PROP_MK_SETTING_VERSION;
-        } else if (isGlobal) {
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
             property = MKSettings.Global.SYS_PROP_MK_SETTING_VERSION;
         }
 
-        if (property != null) {
+        if (property != null && !mGenerationRegistry.isTracked(tableName,
+                getUserIdForTable(tableName, userId))) {
             long version = SystemProperties.getLong(property, 0) + 1;
             if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
             SystemProperties.set(property, Long.toString(version));
         }
 
+        mChangeNotifier.notifyChange(tableName, userId, uris);
+    }
+
+    /**
+     * Performs the notification of coalesced changes to a table.
+     * @param tableName that changed
+     * @param userId
+     * @param uris to send notifications for
+     */
+    private void dispatchChange(String tableName, int userId, ArraySet<Uri> uris) {
+        final boolean isGlobal = tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL);
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
         final long oldId = Binder.clearCallingIdentity();
         try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
+            for (int i = 0; i < uris.size(); i++) {
+                final Uri uri = uris.valueAt(i);
+                getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
+                if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+            }
         } finally {
             Binder.restoreCallingIdentity(oldId);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -836,6 +1282,4 @@ public class MKSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
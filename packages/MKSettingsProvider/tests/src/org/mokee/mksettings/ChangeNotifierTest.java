@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2019, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.ArraySet;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ChangeNotifierTest {
+    private static final long WINDOW_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static final Uri URI_A = Uri.parse("content://mksettings/system/a");
+    private static final Uri URI_B = Uri.parse("content://mksettings/system/b");
+
+    private static final class Change {
+        final String tableName;
+        final int userId;
+        final ArraySet<Uri> uris;
+        final Thread thread;
+        final long time;
+
+        Change(String tableName, int userId, ArraySet<Uri> uris) {
+            this.tableName = tableName;
+            this.userId = userId;
+            this.uris = uris;
+            this.thread = Thread.currentThread();
+            this.time = SystemClock.uptimeMillis();
+        }
+    }
+
+    private final LinkedBlockingQueue<Change> mChanges = new LinkedBlockingQueue<Change>();
+    private final ChangeNotifier.Callback mCallback = new ChangeNotifier.Callback() {
+        @Override
+        public void onChange(String tableName, int userId, ArraySet<Uri> uris) {
+            mChanges.add(new Change(tableName, userId, uris));
+        }
+    };
+
+    private HandlerThread mThread;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("ChangeNotifierTest");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void testChangesWithinWindowAreCoalesced() throws Exception {
+        ChangeNotifier notifier = new ChangeNotifier(mThread.getLooper(), WINDOW_MILLIS,
+                mCallback);
+        final long start = SystemClock.uptimeMillis();
+        notifier.notifyChange("system", 0, new Uri[] { URI_A });
+        notifier.notifyChange("system", 0, new Uri[] { URI_A, URI_B });
+
+        Change change = mChanges.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(change);
+        assertEquals("system", change.tableName);
+        assertEquals(0, change.userId);
+        assertEquals(2, change.uris.size());
+        assertTrue(change.uris.contains(URI_A));
+        assertTrue(change.uris.contains(URI_B));
+        assertSame(mThread, change.thread);
+        assertTrue(change.time - start >= WINDOW_MILLIS);
+
+        assertNull(mChanges.poll(WINDOW_MILLIS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testTablesAndUsersAreDispatchedSeparately() throws Exception {
+        ChangeNotifier notifier = new ChangeNotifier(mThread.getLooper(), WINDOW_MILLIS,
+                mCallback);
+        notifier.notifyChange("system", 0, new Uri[] { URI_A });
+        notifier.notifyChange("secure", 0, new Uri[] { URI_A });
+        notifier.notifyChange("system", 10, new Uri[] { URI_B });
+
+        List<String> dispatched = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            Change change = mChanges.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(change);
+            assertEquals(1, change.uris.size());
+            dispatched.add(change.tableName + "/" + change.userId);
+        }
+        assertTrue(dispatched.contains("system/0"));
+        assertTrue(dispatched.contains("secure/0"));
+        assertTrue(dispatched.contains("system/10"));
+
+        assertNull(mChanges.poll(WINDOW_MILLIS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testChangeAfterDispatchStartsNewWindow() throws Exception {
+        ChangeNotifier notifier = new ChangeNotifier(mThread.getLooper(), WINDOW_MILLIS,
+                mCallback);
+        notifier.notifyChange("system", 0, new Uri[] { URI_A });
+        Change first = mChanges.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+
+        notifier.notifyChange("system", 0, new Uri[] { URI_B });
+        Change second = mChanges.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(second);
+        assertEquals(1, second.uris.size());
+        assertTrue(second.uris.contains(URI_B));
+    }
+
+    @Test
+    public void testChangesAreDispatchedRightAwayWithoutWindow() {
+        ChangeNotifier notifier = new ChangeNotifier(mThread.getLooper(), 0, mCallback);
+        notifier.notifyChange("global", 0, new Uri[] { URI_A, URI_A });
+
+        Change change = mChanges.poll();
+        assertNotNull(change);
+        assertEquals("global", change.tableName);
+        assertEquals(1, change.uris.size());
+        assertSame(Thread.currentThread(), change.thread);
+    }
+}
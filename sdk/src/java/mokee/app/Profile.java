@@ -21,15 +21,18 @@ import android.media.AudioManager;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.TimingsTraceLog;
 
 import com.android.internal.policy.IKeyguardService;
 import mokee.os.Build;
 import mokee.profiles.AirplaneModeSettings;
 import mokee.profiles.BrightnessSettings;
+import mokee.profiles.ConnectionOverrideBatch;
 import mokee.profiles.ConnectionSettings;
 import mokee.profiles.LockSettings;
 import mokee.profiles.RingModeSettings;
@@ -44,6 +47,7 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -76,6 +80,8 @@ public final class Profile implements Parcelable, Comparable {
     private boolean mDirty;
 
     private static final String TAG = "Profile";
+    // Enable the below to log how long each part of selecting a profile takes
+    private static final boolean LOCAL_LOGV = false;
 
     private int mProfileType;
 
@@ -157,6 +163,12 @@ public final class Profile implements Parcelable, Comparable {
         public static final int WIFI = 0;
         /** Represents a Bluetooth trigger type */
         public static final int BLUETOOTH = 1;
+        /**
+         * Represents a weekly time window trigger type. The id of such a trigger is built with
+         * {@link ScheduleWindow#toTriggerId()}. The trigger connects when the window opens,
+         * and disconnects when it closes.
+         */
+        public static final int SCHEDULE = 2;
     }
 
     /**
@@ -191,6 +203,116 @@ public final class Profile implements Parcelable, Comparable {
         public static final int CONDITIONAL = 1;
     }
 
+    /**
+     * A weekly time window for {@link TriggerType#SCHEDULE} triggers. The window opens at its
+     * start time on each of its days, and closes at its end time, which is on the next day if
+     * it is not after the start time.
+     */
+    public static final class ScheduleWindow {
+        /** Sunday, for use in the days of a window */
+        public static final int SUNDAY = 1 << 0;
+        /** Monday, for use in the days of a window */
+        public static final int MONDAY = 1 << 1;
+        /** Tuesday, for use in the days of a window */
+        public static final int TUESDAY = 1 << 2;
+        /** Wednesday, for use in the days of a window */
+        public static final int WEDNESDAY = 1 << 3;
+        /** Thursday, for use in the days of a window */
+        public static final int THURSDAY = 1 << 4;
+        /** Friday, for use in the days of a window */
+        public static final int FRIDAY = 1 << 5;
+        /** Saturday, for use in the days of a window */
+        public static final int SATURDAY = 1 << 6;
+        /** Every day of the week */
+        public static final int EVERY_DAY = (1 << 7) - 1;
+
+        private static final String ID_PREFIX = "schedule:";
+        private static final int MINUTES_PER_DAY = 24 * 60;
+
+        private final int mDays;
+        private final int mStartMinute;
+        private final int mEndMinute;
+
+        /**
+         * @param days the days the window opens on, a combination of {@link #SUNDAY} to
+         *     {@link #SATURDAY}
+         * @param startMinute the minute of the day the window opens at
+         * @param endMinute the minute of the day the window closes at
+         * @throws IllegalArgumentException if there are no days, or the times are not valid
+         *     and different minutes of a day
+         */
+        public ScheduleWindow(int days, int startMinute, int endMinute) {
+            if (days <= 0 || days > EVERY_DAY) {
+                throw new IllegalArgumentException("Invalid days " + days);
+            }
+            if (startMinute < 0 || startMinute >= MINUTES_PER_DAY
+                    || endMinute < 0 || endMinute >= MINUTES_PER_DAY
+                    || startMinute == endMinute) {
+                throw new IllegalArgumentException("Invalid window " + startMinute
+                        + "-" + endMinute);
+            }
+            mDays = days;
+            mStartMinute = startMinute;
+            mEndMinute = endMinute;
+        }
+
+        /**
+         * Get the days the window opens on
+         * @return a combination of {@link #SUNDAY} to {@link #SATURDAY}
+         */
+        public int getDays() {
+            return mDays;
+        }
+
+        /**
+         * Get the minute of the day the window opens at
+         * @return minutes since midnight
+         */
+        public int getStartMinute() {
+            return mStartMinute;
+        }
+
+        /**
+         * Get the minute of the day the window closes at
+         * @return minutes since midnight
+         */
+        public int getEndMinute() {
+            return mEndMinute;
+        }
+
+        /**
+         * Get the id of a {@link TriggerType#SCHEDULE} {@link ProfileTrigger} for this window
+         * @return a string identifier
+         */
+        public String toTriggerId() {
+            return ID_PREFIX + mDays + ":" + mStartMinute + "-" + mEndMinute;
+        }
+
+        /**
+         * Parse the id of a {@link TriggerType#SCHEDULE} {@link ProfileTrigger}
+         * @param id a string identifier built by {@link #toTriggerId()}
+         * @return the {@link ScheduleWindow}, or null if the id is not a valid window
+         */
+        public static ScheduleWindow fromTriggerId(String id) {
+            if (id == null || !id.startsWith(ID_PREFIX)) {
+                return null;
+            }
+            final int daysEnd = id.indexOf(':', ID_PREFIX.length());
+            final int startEnd = id.indexOf('-', daysEnd + 1);
+            if (daysEnd < 0 || startEnd < 0) {
+                return null;
+            }
+            try {
+                return new ScheduleWindow(
+                        Integer.parseInt(id.substring(ID_PREFIX.length(), daysEnd)),
+                        Integer.parseInt(id.substring(daysEnd + 1, startEnd)),
+                        Integer.parseInt(id.substring(startEnd + 1)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
     /**
      * A {@link ProfileTrigger} is a {@link TriggerType} which can be queried from the OS
      */
@@ -302,7 +424,7 @@ public final class Profile implements Parcelable, Comparable {
          * @hide
          */
         public void getXmlString(StringBuilder builder, Context context) {
-            final String itemType = mType == TriggerType.WIFI ? "wifiAP" : "btDevice";
+            final String itemType = getItemType(mType);
 
             builder.append("<");
             builder.append(itemType);
@@ -330,6 +452,8 @@ public final class Profile implements Parcelable, Comparable {
                 type = TriggerType.WIFI;
             } else if (name.equals("btDevice")) {
                 type = TriggerType.BLUETOOTH;
+            } else if (name.equals("schedule")) {
+                type = TriggerType.SCHEDULE;
             } else {
                 return null;
             }
@@ -344,8 +468,20 @@ public final class Profile implements Parcelable, Comparable {
             return new ProfileTrigger(type, id, state, triggerName);
         }
 
+        private static String getItemType(int type) {
+            switch (type) {
+                case TriggerType.WIFI: return "wifiAP";
+                case TriggerType.SCHEDULE: return "schedule";
+                default: return "btDevice";
+            }
+        }
+
         private static String getIdType(int type) {
-            return type == TriggerType.WIFI ? "ssid" : "address";
+            switch (type) {
+                case TriggerType.WIFI: return "ssid";
+                case TriggerType.SCHEDULE: return "window";
+                default: return "address";
+            }
         }
 
         /**
@@ -407,6 +543,30 @@ public final class Profile implements Parcelable, Comparable {
         return TriggerState.DISABLED;
     }
 
+    /**
+     * Get the {@link ProfileTrigger} of a given {@link TriggerType} with a given id
+     * @param type {@link TriggerType}
+     * @param id string id of {@link ProfileTrigger}
+     * @return the {@link ProfileTrigger}, or null if there is none
+     * @hide
+     */
+    public ProfileTrigger getTrigger(int type, String id) {
+        ProfileTrigger trigger = id != null ? mTriggers.get(id) : null;
+        if (trigger != null && trigger.mType == type) {
+            return trigger;
+        }
+        return null;
+    }
+
+    /**
+     * Get all the {@link ProfileTrigger}s of this profile
+     * @return an unmodifiable view of the {@link ProfileTrigger}s
+     * @hide
+     */
+    public Collection<ProfileTrigger> getTriggers() {
+        return Collections.unmodifiableCollection(mTriggers.values());
+    }
+
     /**
      * Get all the {@link ProfileTrigger}s for a given {@link TriggerType}
      * @param type {@link TriggerType}
@@ -429,10 +589,13 @@ public final class Profile implements Parcelable, Comparable {
      */
     public void setTrigger(int type, String id, int state, String name) {
         if (id == null
-                || type < TriggerType.WIFI || type > TriggerType.BLUETOOTH
+                || type < TriggerType.WIFI || type > TriggerType.SCHEDULE
                 || state < TriggerState.ON_CONNECT || state > TriggerState.ON_A2DP_DISCONNECT) {
             return;
         }
+        if (type == TriggerType.SCHEDULE && ScheduleWindow.fromTriggerId(id) == null) {
+            return;
+        }
 
         ProfileTrigger trigger = mTriggers.get(id);
 
@@ -725,6 +888,15 @@ public final class Profile implements Parcelable, Comparable {
         return mName;
     }
 
+    /**
+     * Get the string resource the name of the {@link Profile} was loaded from
+     * @return the resource id, or a non-positive value if the name was set directly
+     * @hide
+     */
+    public int getNameResId() {
+        return mNameResId;
+    }
+
     /**
      * Set a name for the {@link Profile}
      * @param name a string for the {@link Profile}
@@ -994,6 +1166,30 @@ public final class Profile implements Parcelable, Comparable {
         return false;
     }
 
+    /**
+     * Marks the profile and its settings as written, for when a copy of it was serialized
+     * in its place.
+     * @hide
+     */
+    public void clearDirty() {
+        mDirty = false;
+        for (ProfileGroup group : profileGroups.values()) {
+            group.clearDirty();
+        }
+        for (StreamSettings stream : streams.values()) {
+            stream.clearDirty();
+        }
+        for (ConnectionSettings conn : connections.values()) {
+            conn.clearDirty();
+        }
+        for (ConnectionSettings conn : networkConnectionSubIds.values()) {
+            conn.clearDirty();
+        }
+        mRingMode.clearDirty();
+        mAirplaneMode.clearDirty();
+        mBrightness.clearDirty();
+    }
+
     /** @hide */
     public void getXmlString(StringBuilder builder, Context context) {
         builder.append("<profile ");
@@ -1230,36 +1426,60 @@ public final class Profile implements Parcelable, Comparable {
 
     /** @hide */
     public void doSelect(Context context, IKeyguardService keyguardService) {
+        // Overrides are compared against the current device state and only applied where it
+        // differs, so switching between similar profiles doesn't toggle radios or rewrite
+        // settings. Each subsystem gets a trace section, which is only logged with LOCAL_LOGV.
+        final TimingsTraceLog timings = new TimingsTraceLog(TAG, Trace.TRACE_TAG_SYSTEM_SERVER) {
+            @Override
+            public void logDuration(String name, long timeMs) {
+                if (LOCAL_LOGV) {
+                    super.logDuration(name, timeMs);
+                }
+            }
+        };
+
         // Set stream volumes
+        timings.traceBegin("SelectStreams");
         AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         for (StreamSettings sd : streams.values()) {
-            if (sd.isOverride()) {
+            if (sd.isOverride() && am.getStreamVolume(sd.getStreamId()) != sd.getValue()) {
                 am.setStreamVolume(sd.getStreamId(), sd.getValue(), 0);
             }
         }
+        timings.traceEnd();
+
+        // Set airplane mode, before the radios it affects
+        timings.traceBegin("SelectAirplaneMode");
+        mAirplaneMode.processOverride(context);
+        timings.traceEnd();
+
         // Set connections
+        timings.traceBegin("SelectConnections");
+        ConnectionOverrideBatch batch = new ConnectionOverrideBatch(context);
         for (ConnectionSettings cs : connections.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
+            batch.add(cs);
         }
         for (ConnectionSettings cs : networkConnectionSubIds.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
+            batch.add(cs);
         }
+        batch.execute();
+        timings.traceEnd();
 
         // Set ring mode
+        timings.traceBegin("SelectRingMode");
         mRingMode.processOverride(context);
-        // Set airplane mode
-        mAirplaneMode.processOverride(context);
+        timings.traceEnd();
 
         // Set brightness
+        timings.traceBegin("SelectBrightness");
         mBrightness.processOverride(context);
+        timings.traceEnd();
 
         if (keyguardService != null) {
             // Set lock screen mode
+            timings.traceBegin("SelectLockMode");
             mScreenLockMode.processOverride(context, keyguardService);
+            timings.traceEnd();
         } else {
             Log.e(TAG, "cannot process screen lock override without a keyguard service.");
         }
@@ -1273,20 +1493,28 @@ public final class Profile implements Parcelable, Comparable {
         // }
 
         // Set doze mode
+        timings.traceBegin("SelectDozeAndLightModes");
         if (mDozeMode != DozeMode.DEFAULT) {
-            Settings.Secure.putIntForUser(context.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED,
-                    mDozeMode == DozeMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int dozeEnabled = mDozeMode == DozeMode.ENABLE ? 1 : 0;
+            if (Settings.Secure.getIntForUser(context.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, -1, UserHandle.USER_CURRENT) != dozeEnabled) {
+                Settings.Secure.putIntForUser(context.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, dozeEnabled, UserHandle.USER_CURRENT);
+            }
         }
 
         // Set notification light mode
         if (mNotificationLightMode != NotificationLightMode.DEFAULT) {
-            Settings.System.putIntForUser(context.getContentResolver(),
-                Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0,
+            final int lightPulse = mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0;
+            if (Settings.System.getIntForUser(context.getContentResolver(),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE, -1,
+                    UserHandle.USER_CURRENT) != lightPulse) {
+                Settings.System.putIntForUser(context.getContentResolver(),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE, lightPulse,
                     UserHandle.USER_CURRENT);
+            }
         }
+        timings.traceEnd();
     }
 
     /**
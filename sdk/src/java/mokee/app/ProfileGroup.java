@@ -134,6 +134,11 @@ public final class ProfileGroup implements Parcelable {
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public void setSoundOverride(Uri sound) {
         mSoundOverride = sound;
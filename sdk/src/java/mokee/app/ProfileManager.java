@@ -16,18 +16,23 @@
 
 package mokee.app;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.annotation.SdkConstant;
 import android.annotation.SdkConstant.SdkConstantType;
 import android.app.NotificationGroup;
 import android.content.Context;
+import android.content.pm.ParceledListSlice;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.Log;
 
+import mokee.app.IProfileChangeListener;
 import mokee.app.IProfileManager;
 
 import com.android.internal.R;
@@ -234,6 +239,56 @@ public class ProfileManager {
      */
     public static final int PROFILES_STATE_ENABLED = 1;
 
+    // Cached in place of a null notification group, which ConcurrentHashMap can't hold
+    private static final UUID NO_NOTIFICATION_GROUP = new UUID(0L, 0L);
+
+    // Package name to the uuid of its notification group. Replaced by an empty map whenever
+    // the service reports a change, so lookups racing with the change only fill a dropped map.
+    private volatile ConcurrentHashMap<String, UUID> mGroupCache =
+            new ConcurrentHashMap<String, UUID>();
+
+    /**
+     * The active profile as returned by the service once per change, and a copy of it that
+     * the groups returned by getActiveProfileGroup() come from. Callers of getActiveProfile()
+     * may change the profile they get, the copy keeps those changes out of the groups.
+     */
+    private static final class ActiveProfile {
+        final Profile profile;
+        final Profile groupSource;
+
+        ActiveProfile(Profile profile) {
+            this.profile = profile;
+            this.groupSource = copyOf(profile);
+        }
+    }
+
+    // The cached active profile, or null if it must be fetched again. Only written with
+    // mActiveProfileLock held; mActiveProfileGeneration is bumped on every change, so a fetch
+    // that raced with a change doesn't overwrite the invalidation.
+    private volatile ActiveProfile mActiveProfile;
+    private int mActiveProfileGeneration;
+    private final Object mActiveProfileLock = new Object();
+
+    // Whether mChangeListener is registered, the caches are only used once it is
+    private volatile boolean mListening;
+    // Whether the caller lacks the permission to register mChangeListener, so the caches
+    // are never used
+    private volatile boolean mListeningDenied;
+
+    private final IProfileChangeListener mChangeListener = new IProfileChangeListener.Stub() {
+        @Override
+        public void onNotificationGroupsChanged() {
+            mGroupCache = new ConcurrentHashMap<String, UUID>();
+            // Profiles gain and lose profile groups along with the notification groups
+            invalidateActiveProfile();
+        }
+
+        @Override
+        public void onActiveProfileChanged() {
+            invalidateActiveProfile();
+        }
+    };
+
     private static ProfileManager sProfileManagerInstance;
     private ProfileManager(Context context) {
         Context appContext = context.getApplicationContext();
@@ -281,6 +336,7 @@ public class ProfileManager {
     public void setActiveProfile(String profileName) {
         try {
             getService().setActiveProfileByName(profileName);
+            invalidateActiveProfile();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -293,6 +349,7 @@ public class ProfileManager {
     public void setActiveProfile(UUID profileUuid) {
         try {
             getService().setActiveProfile(new ParcelUuid(profileUuid));
+            invalidateActiveProfile();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -300,15 +357,57 @@ public class ProfileManager {
 
     /**
      * Get the active {@link Profile}
+     * <p>
+     * The profile may be shared with other callers in the same process until the active
+     * profile changes. Pass it to {@link #updateProfile} after changing it.
      * @return active {@link Profile}
      */
     public Profile getActiveProfile() {
+        ActiveProfile active = getCachedActiveProfile();
+        return active != null ? active.profile : null;
+    }
+
+    /**
+     * Returns the cached active profile, fetching it if needed. It is only kept while the
+     * change listener is registered, otherwise it is fetched on every call.
+     */
+    private ActiveProfile getCachedActiveProfile() {
+        ActiveProfile active = mActiveProfile;
+        if (active != null) {
+            return active;
+        }
+
+        final boolean listening = ensureChangeListener();
+        final int generation;
+        synchronized (mActiveProfileLock) {
+            generation = mActiveProfileGeneration;
+        }
+        final Profile profile;
         try {
-            return getService().getActiveProfile();
+            profile = getService().getActiveProfile();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
+            return null;
+        }
+        if (profile == null) {
+            return null;
+        }
+        active = new ActiveProfile(profile);
+        if (listening) {
+            synchronized (mActiveProfileLock) {
+                if (generation == mActiveProfileGeneration) {
+                    mActiveProfile = active;
+                }
+            }
+        }
+        return active;
+    }
+
+    private void invalidateActiveProfile() {
+        synchronized (mActiveProfileLock) {
+            mActiveProfileGeneration++;
+            mActiveProfile = null;
         }
-        return null;
     }
 
     /**
@@ -342,6 +441,7 @@ public class ProfileManager {
     public void updateProfile(Profile profile) {
         try {
             getService().updateProfile(profile);
+            invalidateActiveProfile();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -384,10 +484,10 @@ public class ProfileManager {
      */
     public String[] getProfileNames() {
         try {
-            Profile[] profiles = getService().getProfiles();
-            String[] names = new String[profiles.length];
-            for (int i = 0; i < profiles.length; i++) {
-                names[i] = profiles[i].getName();
+            List<ProfileSummary> summaries = getService().getProfileSummaries().getList();
+            String[] names = new String[summaries.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = summaries.get(i).getName();
             }
             return names;
         } catch (RemoteException e) {
@@ -402,7 +502,24 @@ public class ProfileManager {
      */
     public Profile[] getProfiles() {
         try {
-            return getService().getProfiles();
+            ParceledListSlice<Profile> profiles = getService().getProfiles();
+            return profiles.getList().toArray(new Profile[0]);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Get summaries of the {@link Profile}s currently available to the user, sorted by name.
+     * This is cheaper than {@link #getProfiles()} when only the names, types or active state
+     * of the profiles are needed.
+     * @return a list of {@link ProfileSummary}
+     */
+    public List<ProfileSummary> getProfileSummaries() {
+        try {
+            ParceledListSlice<ProfileSummary> summaries = getService().getProfileSummaries();
+            return summaries.getList();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -540,18 +657,76 @@ public class ProfileManager {
     }
 
     /**
-     * Get an active {@link ProfileGroup} via its package name
+     * Get an active {@link ProfileGroup} via its package name. The group is shared with other
+     * callers in the same process and must not be modified.
      * @param packageName the package name associated to the profile group
      * @return {@link ProfileGroup}
      * @hide
      */
     public ProfileGroup getActiveProfileGroup(String packageName) {
-        NotificationGroup notificationGroup = getNotificationGroupForPackage(packageName);
-        if (notificationGroup == null) {
-            ProfileGroup defaultGroup = getActiveProfile().getDefaultGroup();
-            return defaultGroup;
+        UUID groupUuid = getNotificationGroupUuidForPackage(packageName);
+        ActiveProfile active = getCachedActiveProfile();
+        if (active == null) {
+            return null;
+        }
+        if (groupUuid == null) {
+            return active.groupSource.getDefaultGroup();
+        }
+        return active.groupSource.getProfileGroup(groupUuid);
+    }
+
+    /**
+     * Copies a profile once per change of the active profile, see {@link ActiveProfile}.
+     */
+    private static Profile copyOf(Profile profile) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private UUID getNotificationGroupUuidForPackage(String packageName) {
+        ConcurrentHashMap<String, UUID> cache = getGroupCache();
+        UUID groupUuid = cache != null ? cache.get(packageName) : null;
+        if (groupUuid == null) {
+            NotificationGroup group = getNotificationGroupForPackage(packageName);
+            groupUuid = group != null ? group.getUuid() : NO_NOTIFICATION_GROUP;
+            if (cache != null) {
+                cache.put(packageName, groupUuid);
+            }
+        }
+        return NO_NOTIFICATION_GROUP.equals(groupUuid) ? null : groupUuid;
+    }
+
+    private ConcurrentHashMap<String, UUID> getGroupCache() {
+        return ensureChangeListener() ? mGroupCache : null;
+    }
+
+    /**
+     * Registers for change callbacks from the service, so that the caches can be used.
+     * @return whether the caches are kept up to date
+     */
+    private boolean ensureChangeListener() {
+        if (!mListening && !mListeningDenied) {
+            synchronized (mChangeListener) {
+                if (!mListening && !mListeningDenied) {
+                    try {
+                        getService().registerChangeListener(mChangeListener);
+                        mListening = true;
+                    } catch (RemoteException e) {
+                        Log.e(TAG, e.getLocalizedMessage(), e);
+                    } catch (SecurityException e) {
+                        Log.w(TAG, "Not caching profiles: " + e.getLocalizedMessage());
+                        mListeningDenied = true;
+                    }
+                }
+            }
         }
-        return getActiveProfile().getProfileGroup(notificationGroup.getUuid());
+        return mListening;
     }
 
     /**
@@ -560,6 +735,7 @@ public class ProfileManager {
     public void resetAll() {
         try {
             getService().resetAll();
+            invalidateActiveProfile();
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         } catch (SecurityException e) {
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.app;
+
+import android.os.Parcel;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import mokee.os.Build;
+import mokee.os.Concierge;
+import mokee.os.Concierge.ParcelInfo;
+
+import java.util.UUID;
+
+/**
+ * A lightweight description of a {@link Profile}, for listing profiles without transferring
+ * all of their settings.
+ *
+ * @see ProfileManager#getProfileSummaries()
+ */
+public final class ProfileSummary implements Parcelable, Comparable<ProfileSummary> {
+    private UUID mUuid;
+    private String mName;
+    private int mProfileType;
+    private boolean mActive;
+
+    /** @hide */
+    public ProfileSummary(UUID uuid, String name, int profileType, boolean active) {
+        mUuid = uuid;
+        mName = name;
+        mProfileType = profileType;
+        mActive = active;
+    }
+
+    private ProfileSummary(Parcel in) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        if (parcelableVersion >= Build.MK_VERSION_CODES.ILAMA) {
+            mUuid = ParcelUuid.CREATOR.createFromParcel(in).getUuid();
+            if (in.readInt() != 0) {
+                mName = in.readString();
+            }
+            mProfileType = in.readInt();
+            mActive = in.readInt() != 0;
+        }
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * Get the {@link UUID} of the {@link Profile}
+     * @return {@link UUID}
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * Get the name of the {@link Profile}
+     * @return a string name of the profile
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the {@link Profile.Type} of the {@link Profile}
+     * @return {@link Profile.Type}
+     */
+    public int getProfileType() {
+        return mProfileType;
+    }
+
+    /**
+     * Check whether the {@link Profile} was the active profile when the summary was taken
+     * @return whether the profile is active
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Orders summaries by name, the same way {@link Profile}s are ordered. Summaries without a
+     * name go first.
+     */
+    @Override
+    public int compareTo(ProfileSummary other) {
+        if (mName == null || other.mName == null) {
+            return mName == other.mName ? 0 : (mName == null ? -1 : 1);
+        }
+        return mName.compareTo(other.mName);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        // === ILAMA ===
+        new ParcelUuid(mUuid).writeToParcel(dest, 0);
+        if (mName != null) {
+            dest.writeInt(1);
+            dest.writeString(mName);
+        } else {
+            dest.writeInt(0);
+        }
+        dest.writeInt(mProfileType);
+        dest.writeInt(mActive ? 1 : 0);
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    public static final Parcelable.Creator<ProfileSummary> CREATOR =
+            new Parcelable.Creator<ProfileSummary>() {
+        @Override
+        public ProfileSummary createFromParcel(Parcel in) {
+            return new ProfileSummary(in);
+        }
+
+        @Override
+        public ProfileSummary[] newArray(int size) {
+            return new ProfileSummary[size];
+        }
+    };
+}
@@ -40,6 +40,7 @@ public class Build {
         sdkMap.put(MK_VERSION_CODES.GUAVA, "Guava");
         sdkMap.put(MK_VERSION_CODES.HACKBERRY, "Hackberry");
         sdkMap.put(MK_VERSION_CODES.ILAMA, "Ilama");
+        sdkMap.put(MK_VERSION_CODES.JACKFRUIT, "Jackfruit");
     }
 
     /** Various version strings. */
@@ -173,6 +174,18 @@ public class Build {
          * </ul>
          */
         public static final int ILAMA = 9;
+
+        /**
+         * October 2019: The 2nd iteration of the platform sdk for MoKee
+         * <p>Applications targeting this or a later version will get access to these
+         * new features!</p>
+         * <ul>
+         * <li>Forced weather refreshes that bypass the results cached by the
+         * {@link mokee.weather.MKWeatherManager}</li>
+         * <li>Batch weather requests covering several locations at once</li>
+         * </ul>
+         */
+        public static final int JACKFRUIT = 10;
     }
 
     /**
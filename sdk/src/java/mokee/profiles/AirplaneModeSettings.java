@@ -137,6 +137,11 @@ public final class AirplaneModeSettings implements Parcelable {
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public void processOverride(Context context) {
         if (isOverride()) {
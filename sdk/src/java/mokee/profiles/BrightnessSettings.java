@@ -126,6 +126,11 @@ public final class BrightnessSettings implements Parcelable {
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public void processOverride(Context context) {
         if (isOverride()) {
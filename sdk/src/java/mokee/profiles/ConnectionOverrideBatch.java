@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.profiles;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the connection overrides of a profile together.
+ * <p>
+ * The services the overrides need are looked up once for the whole batch. Overrides which
+ * affect each other are applied in order on one thread: Wi-Fi tethering is stopped before
+ * Wi-Fi is enabled and started after it is disabled, and the mobile data and network mode
+ * overrides stay in the order they were added. All other overrides are independent of each
+ * other and are applied concurrently. {@link #execute()} returns once every override was
+ * applied, and can log how long each of them took, see LOCAL_LOGV.
+ * <p>
+ * Each radio is applied on its own thread, which is shared by all batches. If a batch times
+ * out waiting for a radio, the next batch's override of the same radio is applied after the
+ * pending one instead of concurrently with it.
+ * <p>
+ * Airplane mode is not a connection override, callers should apply it before the batch so
+ * that the radios are toggled against the right airplane mode state.
+ *
+ * @hide
+ */
+public final class ConnectionOverrideBatch {
+    private static final String TAG = "ConnectionOverrideBatch";
+    // Enable the below to log how long each override of a batch takes
+    private static final boolean LOCAL_LOGV = false;
+
+    // Don't hold up the profile switch forever if a radio doesn't respond
+    private static final long TIMEOUT_MILLIS = 10000;
+    // How long the thread of a radio is kept around once it has nothing left to apply
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // One single threaded executor per chain of connections, see getExecutor()
+    private static final SparseArray<Executor> sExecutors = new SparseArray<Executor>();
+
+    private final Context mContext;
+    private final ConnectionSettings.Services mServices;
+
+    private final List<ConnectionSettings> mTelephony = new ArrayList<ConnectionSettings>();
+    private final List<ConnectionSettings> mIndependent = new ArrayList<ConnectionSettings>();
+    private ConnectionSettings mWifi;
+    private ConnectionSettings mWifiAp;
+
+    public ConnectionOverrideBatch(Context context) {
+        mContext = context;
+        mServices = new ConnectionSettings.Services(context);
+    }
+
+    /**
+     * Adds a connection to the batch. Connections which don't override the user's settings
+     * are ignored.
+     */
+    public void add(ConnectionSettings connection) {
+        if (!connection.isOverride()) {
+            return;
+        }
+        switch (connection.getConnectionId()) {
+            case ConnectionSettings.PROFILE_CONNECTION_WIFI:
+                mWifi = connection;
+                break;
+            case ConnectionSettings.PROFILE_CONNECTION_WIFIAP:
+                mWifiAp = connection;
+                break;
+            case ConnectionSettings.PROFILE_CONNECTION_MOBILEDATA:
+            case ConnectionSettings.PROFILE_CONNECTION_2G3G4G:
+                mTelephony.add(connection);
+                break;
+            default:
+                mIndependent.add(connection);
+                break;
+        }
+    }
+
+    /**
+     * Applies all connections of the batch, and waits for them to be applied.
+     */
+    public void execute() {
+        // Chains are keyed by the id of their first connection type, so that the same radios
+        // always end up on the same executor
+        SparseArray<List<ConnectionSettings>> chains = new SparseArray<List<ConnectionSettings>>();
+        List<ConnectionSettings> wifi = getWifiChain();
+        if (!wifi.isEmpty()) {
+            chains.put(ConnectionSettings.PROFILE_CONNECTION_WIFI, wifi);
+        }
+        if (!mTelephony.isEmpty()) {
+            chains.put(ConnectionSettings.PROFILE_CONNECTION_MOBILEDATA, mTelephony);
+        }
+        for (ConnectionSettings connection : mIndependent) {
+            List<ConnectionSettings> chain = new ArrayList<ConnectionSettings>(1);
+            chain.add(connection);
+            chains.put(connection.getConnectionId(), chain);
+        }
+        if (chains.size() == 0) {
+            return;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        final CountDownLatch done = new CountDownLatch(chains.size());
+        final List<Chain> tasks = new ArrayList<Chain>(chains.size());
+        for (int i = 0; i < chains.size(); i++) {
+            Chain task = new Chain(chains.valueAt(i), done);
+            tasks.add(task);
+            getExecutor(chains.keyAt(i)).execute(task);
+        }
+
+        try {
+            if (!done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out applying connection overrides");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (LOCAL_LOGV) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Applied connection overrides in ")
+                    .append(SystemClock.elapsedRealtime() - start).append("ms:");
+            for (Chain task : tasks) {
+                task.appendDurations(builder);
+            }
+            Log.v(TAG, builder.toString());
+        }
+    }
+
+    /**
+     * Returns the executor applying the chain with the given key. It runs one override at a
+     * time, in the order they were submitted by all batches.
+     */
+    private static Executor getExecutor(final int key) {
+        synchronized (sExecutors) {
+            Executor executor = sExecutors.get(key);
+            if (executor == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+                        THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                return new Thread(r, TAG + ":" + getConnectionName(key));
+                            }
+                        });
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+                sExecutors.put(key, executor);
+            }
+            return executor;
+        }
+    }
+
+    private List<ConnectionSettings> getWifiChain() {
+        List<ConnectionSettings> chain = new ArrayList<ConnectionSettings>(2);
+        // Starting the hotspot disables Wi-Fi, and enabling Wi-Fi stops the hotspot
+        boolean apFirst = mWifiAp != null && mWifiAp.getValue() != 1;
+        if (apFirst) {
+            chain.add(mWifiAp);
+        }
+        if (mWifi != null) {
+            chain.add(mWifi);
+        }
+        if (mWifiAp != null && !apFirst) {
+            chain.add(mWifiAp);
+        }
+        return chain;
+    }
+
+    private static String getConnectionName(int connectionId) {
+        switch (connectionId) {
+            case ConnectionSettings.PROFILE_CONNECTION_MOBILEDATA: return "mobiledata";
+            case ConnectionSettings.PROFILE_CONNECTION_WIFI: return "wifi";
+            case ConnectionSettings.PROFILE_CONNECTION_WIFIAP: return "wifiap";
+            case ConnectionSettings.PROFILE_CONNECTION_GPS: return "gps";
+            case ConnectionSettings.PROFILE_CONNECTION_SYNC: return "sync";
+            case ConnectionSettings.PROFILE_CONNECTION_BLUETOOTH: return "bluetooth";
+            case ConnectionSettings.PROFILE_CONNECTION_NFC: return "nfc";
+            case ConnectionSettings.PROFILE_CONNECTION_2G3G4G: return "networkmode";
+            default: return Integer.toString(connectionId);
+        }
+    }
+
+    /**
+     * Applies connections that depend on each other one after the other.
+     */
+    private final class Chain implements Runnable {
+        private final List<ConnectionSettings> mConnections;
+        private final CountDownLatch mDone;
+        // Written before counting down mDone, -1 until the connection was applied
+        private final long[] mDurations;
+
+        Chain(List<ConnectionSettings> connections, CountDownLatch done) {
+            mConnections = connections;
+            mDone = done;
+            mDurations = new long[connections.size()];
+            for (int i = 0; i < mDurations.length; i++) {
+                mDurations[i] = -1;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < mConnections.size(); i++) {
+                    ConnectionSettings connection = mConnections.get(i);
+                    final long start = SystemClock.elapsedRealtime();
+                    Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ConnectionOverride:"
+                            + getConnectionName(connection.getConnectionId()));
+                    try {
+                        connection.processOverride(mContext, mServices);
+                    } catch (RuntimeException e) {
+                        // Don't let one radio keep the others from being applied
+                        Log.e(TAG, "Unable to apply connection override "
+                                + getConnectionName(connection.getConnectionId()), e);
+                    } finally {
+                        Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                    }
+                    mDurations[i] = SystemClock.elapsedRealtime() - start;
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        void appendDurations(StringBuilder builder) {
+            for (int i = 0; i < mConnections.size(); i++) {
+                builder.append(' ')
+                        .append(getConnectionName(mConnections.get(i).getConnectionId()))
+                        .append('=');
+                if (mDurations[i] >= 0) {
+                    builder.append(mDurations[i]).append("ms");
+                } else {
+                    builder.append("pending");
+                }
+            }
+        }
+    }
+}
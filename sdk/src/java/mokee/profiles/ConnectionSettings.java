@@ -250,28 +250,31 @@ public final class ConnectionSettings implements Parcelable {
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public void processOverride(Context context) {
-        BluetoothAdapter bta = BluetoothAdapter.getDefaultAdapter();
-        LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        WifiManager wm = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        ConnectivityManager cm =
-                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        TelephonyManager tm = (TelephonyManager)
-                context.getSystemService(Context.TELEPHONY_SERVICE);
-        SubscriptionManager sm = context.getSystemService(SubscriptionManager.class);
-        NfcAdapter nfcAdapter = null;
-        try {
-            nfcAdapter = NfcAdapter.getNfcAdapter(context);
-        } catch (UnsupportedOperationException e) {
-            //Nfc not available
-        }
+        processOverride(context, new Services(context));
+    }
 
+    /**
+     * Applies the override, looking up the services it needs through {@code services}, so that
+     * a {@link ConnectionOverrideBatch} only looks each of them up once.
+     */
+    /* package */ void processOverride(Context context, Services services) {
+        // Leave the connection alone if it already is in the forced state
         boolean forcedState = getValue() == 1;
         boolean currentState;
+        WifiManager wm;
+        ConnectivityManager cm;
 
         switch (getConnectionId()) {
             case PROFILE_CONNECTION_MOBILEDATA:
+                TelephonyManager tm = services.getTelephonyManager();
+                SubscriptionManager sm = services.getSubscriptionManager();
                 List<SubscriptionInfo> list = sm.getActiveSubscriptionInfoList();
                 if (list != null) {
                     for (int i = 0; i < list.size(); i++) {
@@ -318,6 +321,10 @@ public final class ConnectionSettings implements Parcelable {
                 }
                 break;
             case PROFILE_CONNECTION_BLUETOOTH:
+                BluetoothAdapter bta = services.getBluetoothAdapter();
+                if (bta == null) {
+                    break;
+                }
                 int btstate = bta.getState();
                 if (forcedState && (btstate == BluetoothAdapter.STATE_OFF
                         || btstate == BluetoothAdapter.STATE_TURNING_OFF)) {
@@ -328,6 +335,7 @@ public final class ConnectionSettings implements Parcelable {
                 }
                 break;
             case PROFILE_CONNECTION_GPS:
+                LocationManager lm = services.getLocationManager();
                 currentState = lm.isProviderEnabled(LocationManager.GPS_PROVIDER);
                 if (currentState != forcedState) {
                     Settings.Secure.setLocationProviderEnabled(context.getContentResolver(),
@@ -341,20 +349,24 @@ public final class ConnectionSettings implements Parcelable {
                 }
                 break;
             case PROFILE_CONNECTION_WIFI:
+                wm = services.getWifiManager();
                 int wifiApState = wm.getWifiApState();
                 currentState = wm.isWifiEnabled();
                 if (currentState != forcedState) {
                     // Disable wifi tether
                     if (forcedState && (wifiApState == WifiManager.WIFI_AP_STATE_ENABLING) ||
                             (wifiApState == WifiManager.WIFI_AP_STATE_ENABLED)) {
+                        cm = services.getConnectivityManager();
                         cm.stopTethering(ConnectivityManager.TETHERING_WIFI);
                     }
                     wm.setWifiEnabled(forcedState);
                 }
                 break;
             case PROFILE_CONNECTION_WIFIAP:
+                wm = services.getWifiManager();
                 currentState = wm.isWifiApEnabled();
                 if (currentState != forcedState) {
+                    cm = services.getConnectivityManager();
                     // ConnectivityManager will disable wifi
                     if (forcedState) {
                         cm.startTethering(ConnectivityManager.TETHERING_WIFI,
@@ -365,6 +377,7 @@ public final class ConnectionSettings implements Parcelable {
                 }
                 break;
             case PROFILE_CONNECTION_NFC:
+                NfcAdapter nfcAdapter = services.getNfcAdapter();
                 if (nfcAdapter != null) {
                     int adapterState = nfcAdapter.getAdapterState();
                     currentState = (adapterState == NfcAdapter.STATE_ON ||
@@ -476,6 +489,84 @@ public final class ConnectionSettings implements Parcelable {
         parcelInfo.complete();
     }
 
+    /**
+     * Looks up the services connection overrides need, each at most once and only when first
+     * used.
+     */
+    /* package */ static final class Services {
+        private final Context mContext;
+
+        private BluetoothAdapter mBluetoothAdapter;
+        private ConnectivityManager mConnectivityManager;
+        private LocationManager mLocationManager;
+        private NfcAdapter mNfcAdapter;
+        private SubscriptionManager mSubscriptionManager;
+        private TelephonyManager mTelephonyManager;
+        private WifiManager mWifiManager;
+        private boolean mNfcAdapterResolved;
+
+        Services(Context context) {
+            mContext = context;
+        }
+
+        synchronized BluetoothAdapter getBluetoothAdapter() {
+            if (mBluetoothAdapter == null) {
+                mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            }
+            return mBluetoothAdapter;
+        }
+
+        synchronized ConnectivityManager getConnectivityManager() {
+            if (mConnectivityManager == null) {
+                mConnectivityManager = (ConnectivityManager)
+                        mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            }
+            return mConnectivityManager;
+        }
+
+        synchronized LocationManager getLocationManager() {
+            if (mLocationManager == null) {
+                mLocationManager =
+                        (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+            }
+            return mLocationManager;
+        }
+
+        synchronized NfcAdapter getNfcAdapter() {
+            if (!mNfcAdapterResolved) {
+                try {
+                    mNfcAdapter = NfcAdapter.getNfcAdapter(mContext);
+                } catch (UnsupportedOperationException e) {
+                    //Nfc not available
+                }
+                mNfcAdapterResolved = true;
+            }
+            return mNfcAdapter;
+        }
+
+        synchronized SubscriptionManager getSubscriptionManager() {
+            if (mSubscriptionManager == null) {
+                mSubscriptionManager = mContext.getSystemService(SubscriptionManager.class);
+            }
+            return mSubscriptionManager;
+        }
+
+        synchronized TelephonyManager getTelephonyManager() {
+            if (mTelephonyManager == null) {
+                mTelephonyManager =
+                        (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            }
+            return mTelephonyManager;
+        }
+
+        synchronized WifiManager getWifiManager() {
+            if (mWifiManager == null) {
+                mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+            }
+            return mWifiManager;
+        }
+    }
+
     private static final class OnStartTetheringCallback
             extends ConnectivityManager.OnStartTetheringCallback {
         @Override
@@ -128,6 +128,11 @@ public final class RingModeSettings implements Parcelable {
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public void processOverride(Context context) {
         if (isOverride()) {
@@ -138,7 +143,9 @@ public final class RingModeSettings implements Parcelable {
                 ringerMode = AudioManager.RINGER_MODE_VIBRATE;
             }
             AudioManager amgr = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-            amgr.setRingerModeInternal(ringerMode);
+            if (amgr.getRingerModeInternal() != ringerMode) {
+                amgr.setRingerModeInternal(ringerMode);
+            }
         }
     }
 
@@ -138,6 +138,11 @@ public final class StreamSettings implements Parcelable{
         return mDirty;
     }
 
+    /** @hide */
+    public void clearDirty() {
+        mDirty = false;
+    }
+
     /** @hide */
     public static StreamSettings fromXml(XmlPullParser xpp, Context context)
             throws XmlPullParserException, IOException {
@@ -21,12 +21,17 @@ package mokee.providers;
 import com.android.internal.util.ArrayUtils;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.IContentProvider;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -35,15 +40,18 @@ import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
 
 import com.android.internal.util.ArrayUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import mokee.trust.TrustInterface;
@@ -130,6 +138,61 @@ public final class MKSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from the
+     * 'system' table at once
+     */
+    public static final String CALL_METHOD_GET_MANY_SYSTEM = "GET_MANY_system";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from the
+     * 'secure' table at once
+     */
+    public static final String CALL_METHOD_GET_MANY_SECURE = "GET_MANY_secure";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to read several keys from the
+     * 'global' table at once
+     */
+    public static final String CALL_METHOD_GET_MANY_GLOBAL = "GET_MANY_global";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to write several keys to the
+     * 'system' table in a single transaction
+     */
+    public static final String CALL_METHOD_PUT_MANY_SYSTEM = "PUT_MANY_system";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to write several keys to the
+     * 'secure' table in a single transaction
+     */
+    public static final String CALL_METHOD_PUT_MANY_SECURE = "PUT_MANY_secure";
+
+    /**
+     * @hide - Private call() method on MKSettingsProvider to write several keys to the
+     * 'global' table in a single transaction
+     */
+    public static final String CALL_METHOD_PUT_MANY_GLOBAL = "PUT_MANY_global";
+
+    /**
+     * @hide - Argument extra to the get-many and put-many call()-based requests holding the
+     * keys to read or write
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Result extra of the get-many call()-based requests holding the values of the
+     * requested keys, in the same order; missing keys have a null value. Also the argument
+     * extra of the put-many requests holding the values to write, in the order of their keys.
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Result extra of the put-many call()-based requests holding the number of keys
+     * that were written
+     */
+    public static final String CALL_METHOD_COUNT_KEY = "_count";
+
     /**
      * @hide - Private call() method on MKSettingsProvider to migrate MK settings
      */
@@ -140,9 +203,27 @@ public final class MKSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Argument extra to the fast-path get call()-based requests asking for generation
+     * tracking. If true, the shared memory generation array is returned under the same key.
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Result extra of the fast-path get call()-based requests holding the index of the
+     * setting in the generation array
+     */
+    public static final String CALL_METHOD_GENERATION_INDEX_KEY = "_generation_index";
+
+    /**
+     * @hide - Result extra of the fast-path get call()-based requests holding the generation of
+     * the setting at the time it was read
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
     // endregion
 
-    // Thread-safe.
+    // Thread-safe. Lookups that hit the cache never take a lock.
     private static class NameValueCache {
         private final String mVersionSystemProperty;
         private final Uri mUri;
@@ -151,9 +232,18 @@ public final class MKSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Upper bound on the number of users other than the calling one whose values are
+        // cached at the same time. The least recently used one is dropped to make room.
+        private static final int MAX_CACHED_OTHER_USERS = 4;
+
+        // The calling user's values. This is by far the most common case, so it is kept out
+        // of the map and never evicted.
+        private final UserValues mSelf = new UserValues(UserHandle.myUserId());
+
+        // Other users' values, keyed by user id. Read without locking, and only modified
+        // while synchronized on the map.
+        private final ConcurrentHashMap<Integer, UserValues> mOtherUsers =
+                new ConcurrentHashMap<Integer, UserValues>();
 
         // Initially null; set lazily and held forever.  Synchronized on 'this'.
         private IContentProvider mContentProvider = null;
@@ -161,14 +251,185 @@ public final class MKSettings {
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
+        private final String mCallGetManyCommand;
         private final String mCallSetCommand;
+        private final String mCallSetManyCommand;
+
+        /**
+         * A value as read from the provider. A new one is created for every read, so the
+         * typed forms of the value are parsed at most once per generation of the setting.
+         * Parsing is not synchronized; racing readers at worst parse the same string twice.
+         */
+        static final class CachedValue {
+            private static final byte UNPARSED = 0;
+            private static final byte PARSED = 1;
+            private static final byte MALFORMED = 2;
+
+            // Returned for reads that failed, and are therefore not cached
+            static final CachedValue NONE = new CachedValue(null, -1, 0);
+
+            final String value;
+            // Index into the generation array, or -1 if the value is not tracked
+            final int generationIndex;
+            final int generation;
+
+            // Each typed value is only valid once its state has been set to PARSED
+            int intValue;
+            long longValue;
+            float floatValue;
+            private volatile byte mIntState = UNPARSED;
+            private volatile byte mLongState = UNPARSED;
+            private volatile byte mFloatState = UNPARSED;
+
+            CachedValue(String value, int generationIndex, int generation) {
+                this.value = value;
+                this.generationIndex = generationIndex;
+                this.generation = generation;
+            }
+
+            /**
+             * Parses the value as an integer unless that has been done before.
+             * @return Whether {@link #intValue} holds the value.
+             */
+            boolean parseInt() {
+                byte state = mIntState;
+                if (state == UNPARSED) {
+                    try {
+                        intValue = Integer.parseInt(value);
+                        state = PARSED;
+                    } catch (NumberFormatException e) {
+                        state = MALFORMED;
+                    }
+                    mIntState = state;
+                }
+                return state == PARSED;
+            }
+
+            /**
+             * Parses the value as a long unless that has been done before.
+             * @return Whether {@link #longValue} holds the value.
+             */
+            boolean parseLong() {
+                byte state = mLongState;
+                if (state == UNPARSED) {
+                    try {
+                        longValue = Long.parseLong(value);
+                        state = PARSED;
+                    } catch (NumberFormatException e) {
+                        state = MALFORMED;
+                    }
+                    mLongState = state;
+                }
+                return state == PARSED;
+            }
+
+            /**
+             * Parses the value as a float unless that has been done before.
+             * @return Whether {@link #floatValue} holds the value.
+             */
+            boolean parseFloat() {
+                byte state = mFloatState;
+                if (state == UNPARSED) {
+                    state = MALFORMED;
+                    if (value != null) {
+                        try {
+                            floatValue = Float.parseFloat(value);
+                            state = PARSED;
+                        } catch (NumberFormatException e) {
+                            // Leave it malformed
+                        }
+                    }
+                    mFloatState = state;
+                }
+                return state == PARSED;
+            }
+        }
+
+        /**
+         * Values cached for one table version. The version and the generation array are fixed
+         * for the lifetime of a snapshot; a new snapshot replaces this one when either changes,
+         * so a reader holding a stale snapshot can at worst cache into a map nobody reads.
+         */
+        private static final class Snapshot {
+            final long version;
+            // Shared memory holding one generation per setting, handed out by the provider
+            // along with the first value read. While it is held, values are revalidated
+            // individually against their own slot rather than dropped whenever the table
+            // version changes.
+            final MemoryIntArray generationArray;
+            final ConcurrentHashMap<String, CachedValue> values =
+                    new ConcurrentHashMap<String, CachedValue>();
+
+            Snapshot(long version, MemoryIntArray generationArray) {
+                this.version = version;
+                this.generationArray = generationArray;
+            }
+
+            /**
+             * Returns whether a cached value is still current. Tracked values compare their
+             * generation against the shared generation array; untracked values are only kept
+             * while there is no array, and are invalidated by the table version instead.
+             */
+            boolean isCurrent(CachedValue cached) throws IOException {
+                if (cached.generationIndex < 0) {
+                    return generationArray == null;
+                }
+                if (generationArray == null) {
+                    return false;
+                }
+                return generationArray.get(cached.generationIndex) == cached.generation;
+            }
+
+            /**
+             * Caches a value read from the provider.
+             * @param name The name of the setting.
+             * @param value The value of the setting, possibly null.
+             * @param index The index of the setting in the generation array, or -1 if the
+             *              provider did not return one.
+             * @param generation The generation of the setting when it was read.
+             * @return The value, whether it could be cached or not.
+             */
+            CachedValue put(String name, String value, int index, int generation) {
+                CachedValue cached;
+                if (index >= 0 && generationArray != null) {
+                    cached = new CachedValue(value, index, generation);
+                    values.put(name, cached);
+                } else if (generationArray == null) {
+                    cached = new CachedValue(value, -1, 0);
+                    values.put(name, cached);
+                } else {
+                    cached = new CachedValue(value, -1, 0);
+                }
+                return cached;
+            }
+        }
+
+        /**
+         * The cached values of a single user. Each user is invalidated on its own, since the
+         * provider hands out a separate generation array for every user.
+         */
+        private static final class UserValues {
+            final int userId;
+            // Read without locking. Only ever replaced, never modified in place, and only
+            // replaced while synchronized on this object.
+            volatile Snapshot snapshot = new Snapshot(0, null);
+            // Uptime of the last lookup, used to pick the user to evict
+            volatile long lastAccess;
+
+            UserValues(int userId) {
+                this.userId = userId;
+            }
+        }
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
+                String getCommand, String getManyCommand, String setCommand,
+                String setManyCommand) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
+            mCallGetManyCommand = getManyCommand;
             mCallSetCommand = setCommand;
+            mCallSetManyCommand = setManyCommand;
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
@@ -205,6 +466,35 @@ public final class MKSettings {
             return true;
         }
 
+        /**
+         * Puts several name/value pairs into the content provider for the specified user. They
+         * are written in a single transaction, and observers are notified once per name.
+         * @param cr The content resolver to use.
+         * @param names The names of the keys to put into the content provider.
+         * @param values The values to put into the content provider, in the order of their keys.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, String[] names, String[] values,
+                final int userId) {
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, values);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                Bundle b = cp.call(cr.getPackageName(), mCallSetManyCommand, null, arg);
+                if (b == null || b.getInt(CALL_METHOD_COUNT_KEY, -1) != names.length) {
+                    Log.w(TAG, "Can't set " + names.length + " keys in " + mUri);
+                    return false;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + names.length + " keys in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
         /**
          * Gets a string value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
@@ -214,27 +504,30 @@ public final class MKSettings {
          * @param userId The user id of the cache to look in.
          * @return The string value of the specified key.
          */
-        public String getStringForUser(ContentResolver cr, String name, final int userId) {
+        public String getStringForUser(ContentResolver cr, String name, int userId) {
+            return getValueForUser(cr, name, userId).value;
+        }
+
+        /**
+         * Gets a value from the cache, reading it from the provider on a miss.
+         * @return The value of the specified key, never null. Failed reads return
+         *     {@link CachedValue#NONE}.
+         * @see #getStringForUser(ContentResolver, String, int)
+         */
+        public CachedValue getValueForUser(ContentResolver cr, String name, int userId) {
+            userId = resolveUserId(userId);
             final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
+            final UserValues user = getUserValues(userId);
+            Snapshot snapshot = null;
+            if (user != null) {
+                if (LOCAL_LOGV) Log.d(TAG, "get setting for user " + userId);
                 long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
 
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
-
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
-                    }
+                // Settings data of concrete users uses a client-side cache
+                snapshot = getSnapshot(user, newValuesVersion);
+                CachedValue cached = snapshot.values.get(name);
+                if (cached != null && isCurrent(user, snapshot, cached)) {
+                    return cached;  // Could hold null, that's OK -- negative caching
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
@@ -249,25 +542,26 @@ public final class MKSettings {
             // interface.
             if (mCallGetCommand != null) {
                 try {
-                    Bundle args = null;
+                    Bundle args = new Bundle();
                     if (!isSelf) {
-                        args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userId);
                     }
+                    if (user != null) {
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY,
+                                snapshot.generationArray == null);
+                    }
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
-                        } else {
-                            if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
-                                    + " by " + UserHandle.myUserId()
-                                    + " so not updating cache");
+                        String value = b.getString(Settings.NameValueTable.VALUE);
+                        if (user != null) {
+                            snapshot = adoptGenerationArray(user, snapshot, b);
+                            return snapshot.put(name, value,
+                                    b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1),
+                                    b.getInt(CALL_METHOD_GENERATION_KEY));
                         }
-                        return value;
+                        if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
+                                + " by " + UserHandle.myUserId() + " so not updating cache");
+                        return new CachedValue(value, -1, 0);
                     }
                     // If the response Bundle is null, we fall through
                     // to the query interface below.
@@ -284,25 +578,232 @@ public final class MKSettings {
                 c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE_PROJECTION, queryArgs, null);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return CachedValue.NONE;
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
-                }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
                 }
-                return value;
+                if (user != null) {
+                    return snapshot.put(name, value, -1, 0);
+                }
+                return new CachedValue(value, -1, 0);
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                return CachedValue.NONE;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Reads several settings in one call to the provider and caches them, including the
+         * ones that have no value. Settings that are already cached and current are skipped.
+         * Prefetching for a user that cannot be cached, such as {@link UserHandle#USER_ALL},
+         * does nothing.
+         * @param cr The content resolver to use.
+         * @param names The names of the keys to read.
+         * @param userId The user id to read the keys for.
+         */
+        public void prefetchForUser(ContentResolver cr, String[] names, int userId) {
+            if (mCallGetManyCommand == null || names == null || names.length == 0) {
+                return;
+            }
+            userId = resolveUserId(userId);
+            final UserValues user = getUserValues(userId);
+            if (user == null) {
+                return;
+            }
+
+            long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            Snapshot snapshot = getSnapshot(user, newValuesVersion);
+            ArrayList<String> missing = new ArrayList<String>(names.length);
+            for (String name : names) {
+                CachedValue cached = snapshot.values.get(name);
+                if (cached == null || !isCurrent(user, snapshot, cached)) {
+                    missing.add(name);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            final String[] missingNames = missing.toArray(new String[missing.size()]);
+            Bundle args = new Bundle();
+            if (userId != UserHandle.myUserId()) {
+                args.putInt(CALL_METHOD_USER_KEY, userId);
+            }
+            args.putStringArray(CALL_METHOD_NAMES_KEY, missingNames);
+            args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, snapshot.generationArray == null);
+            try {
+                IContentProvider cp = lazyGetProvider(cr);
+                Bundle b = cp.call(cr.getPackageName(), mCallGetManyCommand, null, args);
+                String[] values = b != null ? b.getStringArray(CALL_METHOD_VALUES_KEY) : null;
+                if (values == null || values.length != missingNames.length) {
+                    return;
+                }
+
+                int[] indices = b.getIntArray(CALL_METHOD_GENERATION_INDEX_KEY);
+                int[] generations = b.getIntArray(CALL_METHOD_GENERATION_KEY);
+                final boolean tracked = indices != null && generations != null
+                        && indices.length == values.length
+                        && generations.length == values.length;
+                snapshot = adoptGenerationArray(user, snapshot, b);
+                for (int i = 0; i < missingNames.length; i++) {
+                    snapshot.put(missingNames[i], values[i],
+                            tracked ? indices[i] : -1, tracked ? generations[i] : 0);
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "prefetched " + missingNames.length + " key(s) from "
+                        + mUri);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't prefetch keys from " + mUri, e);
+            }
+        }
+
+        /**
+         * Drops the cached values of a removed user.
+         */
+        public void removeUser(int userId) {
+            synchronized (mOtherUsers) {
+                mOtherUsers.remove(userId);
+            }
+        }
+
+        /**
+         * Turns the current user aliases into a concrete user id when that is cheap, which is
+         * only the case within the system process. Everywhere else the alias is passed on to
+         * the provider as is, and lookups through it are not cached.
+         */
+        private static int resolveUserId(int userId) {
+            if ((userId != UserHandle.USER_CURRENT && userId != UserHandle.USER_CURRENT_OR_SELF)
+                    || Process.myUid() != Process.SYSTEM_UID) {
+                return userId;
+            }
+            final long token = Binder.clearCallingIdentity();
+            try {
+                return ActivityManager.getCurrentUser();
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
+        /**
+         * Returns the cached values of a user, making room for them if needed.
+         * @param userId The id of the user.
+         * @return The user's values, or null if the id does not refer to a single user.
+         */
+        private UserValues getUserValues(int userId) {
+            if (userId == mSelf.userId) {
+                return mSelf;
+            }
+            if (userId < 0) {
+                return null;
+            }
+
+            UserValues user = mOtherUsers.get(userId);
+            if (user == null) {
+                synchronized (mOtherUsers) {
+                    user = mOtherUsers.get(userId);
+                    if (user == null) {
+                        if (mOtherUsers.size() >= MAX_CACHED_OTHER_USERS) {
+                            evictLeastRecentlyUsedLocked();
+                        }
+                        user = new UserValues(userId);
+                        mOtherUsers.put(userId, user);
+                    }
+                }
+            }
+            user.lastAccess = SystemClock.uptimeMillis();
+            return user;
+        }
+
+        private void evictLeastRecentlyUsedLocked() {
+            UserValues eldest = null;
+            for (UserValues user : mOtherUsers.values()) {
+                if (eldest == null || user.lastAccess < eldest.lastAccess) {
+                    eldest = user;
+                }
+            }
+            if (eldest != null) {
+                if (LOCAL_LOGV) Log.v(TAG, "evict user " + eldest.userId + " from " + mUri);
+                mOtherUsers.remove(eldest.userId);
+            }
+        }
+
+        /**
+         * Returns the user's snapshot for the current table version, starting a new one if
+         * the version moved since the current snapshot was taken. Only blocks in the latter
+         * case.
+         */
+        private Snapshot getSnapshot(UserValues user, long newValuesVersion) {
+            Snapshot snapshot = user.snapshot;
+            if (snapshot.version == newValuesVersion) {
+                return snapshot;
+            }
+            synchronized (user) {
+                snapshot = user.snapshot;
+                if (snapshot.version != newValuesVersion) {
+                    if (LOCAL_LOGV || false) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] for user "
+                                + user.userId + ": current " + newValuesVersion
+                                + " != cached " + snapshot.version);
+                    }
+                    // The old generation array may still be read by other threads, so it is
+                    // left for the garbage collector rather than closed here.
+                    snapshot = user.snapshot = new Snapshot(newValuesVersion, null);
+                }
+                return snapshot;
+            }
+        }
+
+        /**
+         * Takes ownership of the generation array if the provider handed one out.
+         * @param user The user the call() was made for.
+         * @param snapshot The snapshot the call() was made against.
+         * @param result The call() result that may carry the array.
+         * @return The snapshot to cache the result in.
+         */
+        private Snapshot adoptGenerationArray(UserValues user, Snapshot snapshot,
+                Bundle result) {
+            MemoryIntArray array = result.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            if (array == null) {
+                return snapshot;
+            }
+            synchronized (user) {
+                if (user.snapshot == snapshot && snapshot.generationArray == null) {
+                    // Untracked values would no longer be invalidated by the table
+                    // version, so start over with tracked ones only.
+                    user.snapshot = new Snapshot(snapshot.version, array);
+                    return user.snapshot;
+                }
+            }
+            closeQuietly(array);
+            return snapshot;
+        }
+
+        private boolean isCurrent(UserValues user, Snapshot snapshot, CachedValue cached) {
+            try {
+                return snapshot.isCurrent(cached);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation of " + mUri, e);
+                synchronized (user) {
+                    if (user.snapshot == snapshot) {
+                        user.snapshot = new Snapshot(snapshot.version, null);
+                    }
+                }
+                return false;
+            }
+        }
+
+        private static void closeQuietly(MemoryIntArray array) {
+            try {
+                array.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing generation array", e);
+            }
+        }
     }
 
     // region Validators
@@ -458,6 +959,142 @@ public final class MKSettings {
     }
     // endregion Validators
 
+    /**
+     * Drops the values of a removed user from the client-side caches of this process.
+     * Other processes notice the removal through the generations of the user's settings.
+     * @param userId The id of the removed user.
+     * @hide
+     */
+    public static void onUserRemoved(int userId) {
+        System.sNameValueCache.removeUser(userId);
+        Secure.sNameValueCache.removeUser(userId);
+        Global.sNameValueCache.removeUser(userId);
+    }
+
+    /**
+     * Collects changes to several settings of one table, and writes all of them at once when
+     * {@link #commit()} or {@link #apply()} is called. Compared to writing the settings one by
+     * one, this takes a single database transaction and bumps the table version once. Settings
+     * which moved to another table are written to that table instead. An editor is obtained
+     * from {@link System#edit}, {@link Secure#edit} or {@link Global#edit}, and is not
+     * thread-safe.
+     */
+    public static final class Editor {
+        private final ContentResolver mResolver;
+        private final NameValueCache mNameValueCache;
+        private final int mUserId;
+        private final ArraySet<String> mMovedNames;
+        // Editor of the table the settings in mMovedNames moved to
+        private final Editor mMovedEditor;
+        // Later changes to the same setting replace earlier ones
+        private final ArrayMap<String, String> mChanges = new ArrayMap<String, String>();
+
+        private Editor(ContentResolver resolver, NameValueCache nameValueCache, int userId,
+                ArraySet<String> movedNames, Editor movedEditor) {
+            mResolver = resolver;
+            mNameValueCache = nameValueCache;
+            mUserId = userId;
+            mMovedNames = movedNames;
+            mMovedEditor = movedEditor;
+        }
+
+        /**
+         * Takes over the changes of another editor, leaving it empty.
+         */
+        private Editor(Editor source) {
+            mResolver = source.mResolver;
+            mNameValueCache = source.mNameValueCache;
+            mUserId = source.mUserId;
+            mMovedNames = source.mMovedNames;
+            mMovedEditor = source.mMovedEditor != null ? new Editor(source.mMovedEditor) : null;
+            mChanges.putAll(source.mChanges);
+            source.mChanges.clear();
+        }
+
+        /**
+         * Set a string value, to be written when {@link #commit()} is called.
+         * @param name The name of the setting to modify.
+         * @param value The new value for the setting.
+         * @return This editor, so that calls can be chained.
+         */
+        public Editor putString(String name, String value) {
+            if (mMovedNames != null && mMovedNames.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved to another table,"
+                        + " writing it there.");
+                mMovedEditor.putString(name, value);
+                return this;
+            }
+            mChanges.put(name, value);
+            return this;
+        }
+
+        /**
+         * Set an integer value, to be written when {@link #commit()} is called.
+         * @see #putString(String, String)
+         */
+        public Editor putInt(String name, int value) {
+            return putString(name, Integer.toString(value));
+        }
+
+        /**
+         * Set a long value, to be written when {@link #commit()} is called.
+         * @see #putString(String, String)
+         */
+        public Editor putLong(String name, long value) {
+            return putString(name, Long.toString(value));
+        }
+
+        /**
+         * Set a floating point value, to be written when {@link #commit()} is called.
+         * @see #putString(String, String)
+         */
+        public Editor putFloat(String name, float value) {
+            return putString(name, Float.toString(value));
+        }
+
+        /**
+         * Write all changes made through this editor in a single transaction. The editor is
+         * empty afterwards, and can be used for another batch of changes.
+         * @return true if all values were set, false on database errors
+         */
+        public boolean commit() {
+            // Settings which moved to another table take a transaction of their own
+            final boolean movedCommitted = mMovedEditor == null || mMovedEditor.commit();
+            final int count = mChanges.size();
+            if (count == 0) {
+                return movedCommitted;
+            }
+
+            final String[] names = new String[count];
+            final String[] values = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = mChanges.keyAt(i);
+                values[i] = mChanges.valueAt(i);
+            }
+            mChanges.clear();
+            return mNameValueCache.putStringsForUser(mResolver, names, values, mUserId)
+                    && movedCommitted;
+        }
+
+        /**
+         * Write all changes made through this editor in a single transaction, without waiting
+         * for it. Changes applied by all editors of this process are written in the order they
+         * were applied. The editor is empty afterwards, and can be used for another batch of
+         * changes. Use {@link #commit()} to find out whether the values were set.
+         */
+        public void apply() {
+            final Editor changes = new Editor(this);
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!changes.commit()) {
+                        Log.w(TAG, "Unable to apply settings changes for user " + mUserId);
+                    }
+                }
+            });
+        }
+    }
+
     /**
      * System settings, containing miscellaneous MK system preferences. This table holds simple
      * name/value pairs. There are convenience functions for accessing individual settings entries.
@@ -471,7 +1108,9 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_GET_MANY_SYSTEM,
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_MANY_SYSTEM);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -554,12 +1193,50 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
             if (MOVED_TO_SECURE.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from MKSettings.System"
                         + " to MKSettings.Secure, value is unchanged.");
-                return MKSettings.Secure.getStringForUser(resolver, name, userId);
+                return MKSettings.Secure.getValueForUser(resolver, name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Read several settings with a single call into the settings provider, so that
+         * subsequent lookups of these names are served from the local cache. Names that
+         * have no value are cached as well.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            prefetchForUser(resolver, UserHandle.myUserId(), names);
+        }
+
+        /** @hide */
+        public static void prefetchForUser(ContentResolver resolver, int userId,
+                String... names) {
+            sNameValueCache.prefetchForUser(resolver, names, userId);
+        }
+
+        /**
+         * Start a batch of changes to this table. Nothing is written until
+         * {@link Editor#commit()} is called, which writes all changes at once.
+         * @param resolver to access the database with
+         * @return an editor for this table
+         */
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Editor editForUser(ContentResolver resolver, int userId) {
+            return new Editor(resolver, sNameValueCache, userId, MOVED_TO_SECURE,
+                    Secure.editForUser(resolver, userId));
         }
 
         /**
@@ -604,12 +1281,8 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseInt() ? v.intValue : def;
         }
 
         /**
@@ -638,12 +1311,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.intValue;
         }
 
         /**
@@ -690,14 +1362,8 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseLong() ? v.longValue : def;
         }
 
         /**
@@ -725,12 +1391,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -777,12 +1442,8 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseFloat() ? v.floatValue : def;
         }
 
         /**
@@ -811,15 +1472,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
@@ -2440,7 +3097,9 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_GET_MANY_SECURE,
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_MANY_SECURE);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2523,12 +3182,50 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
             if (MOVED_TO_GLOBAL.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from MKSettings.Secure"
                         + " to MKSettings.Global, value is unchanged.");
-                return MKSettings.Global.getStringForUser(resolver, name, userId);
+                return MKSettings.Global.getValueForUser(resolver, name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Read several settings with a single call into the settings provider, so that
+         * subsequent lookups of these names are served from the local cache. Names that
+         * have no value are cached as well.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            prefetchForUser(resolver, UserHandle.myUserId(), names);
+        }
+
+        /** @hide */
+        public static void prefetchForUser(ContentResolver resolver, int userId,
+                String... names) {
+            sNameValueCache.prefetchForUser(resolver, names, userId);
+        }
+
+        /**
+         * Start a batch of changes to this table. Nothing is written until
+         * {@link Editor#commit()} is called, which writes all changes at once.
+         * @param resolver to access the database with
+         * @return an editor for this table
+         */
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Editor editForUser(ContentResolver resolver, int userId) {
+            return new Editor(resolver, sNameValueCache, userId, MOVED_TO_GLOBAL,
+                    Global.editForUser(resolver, userId));
         }
 
         /**
@@ -2573,12 +3270,8 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseInt() ? v.intValue : def;
         }
 
         /**
@@ -2607,12 +3300,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.intValue;
         }
 
         /**
@@ -2659,14 +3351,8 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseLong() ? v.longValue : def;
         }
 
         /**
@@ -2694,12 +3380,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -2746,12 +3431,8 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseFloat() ? v.floatValue : def;
         }
 
         /**
@@ -2780,15 +3461,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
@@ -3307,7 +3984,9 @@ public final class MKSettings {
                 SYS_PROP_MK_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_GET_MANY_GLOBAL,
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_PUT_MANY_GLOBAL);
 
         // region Methods
 
@@ -3385,7 +4064,44 @@ public final class MKSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return getValueForUser(resolver, name, userId).value;
+        }
+
+        private static NameValueCache.CachedValue getValueForUser(ContentResolver resolver,
+                String name, int userId) {
+            return sNameValueCache.getValueForUser(resolver, name, userId);
+        }
+
+        /**
+         * Read several settings with a single call into the settings provider, so that
+         * subsequent lookups of these names are served from the local cache. Names that
+         * have no value are cached as well.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         */
+        public static void prefetch(ContentResolver resolver, String... names) {
+            prefetchForUser(resolver, UserHandle.myUserId(), names);
+        }
+
+        /** @hide */
+        public static void prefetchForUser(ContentResolver resolver, int userId,
+                String... names) {
+            sNameValueCache.prefetchForUser(resolver, names, userId);
+        }
+
+        /**
+         * Start a batch of changes to this table. Nothing is written until
+         * {@link Editor#commit()} is called, which writes all changes at once.
+         * @param resolver to access the database with
+         * @return an editor for this table
+         */
+        public static Editor edit(ContentResolver resolver) {
+            return editForUser(resolver, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Editor editForUser(ContentResolver resolver, int userId) {
+            return new Editor(resolver, sNameValueCache, userId, null, null);
         }
 
         /**
@@ -3425,12 +4141,8 @@ public final class MKSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseInt() ? v.intValue : def;
         }
 
         /**
@@ -3459,12 +4171,11 @@ public final class MKSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseInt()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.intValue;
         }
 
         /**
@@ -3511,14 +4222,8 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseLong() ? v.longValue : def;
         }
 
         /**
@@ -3546,12 +4251,11 @@ public final class MKSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseLong()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -3598,12 +4302,8 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            return v.parseFloat() ? v.floatValue : def;
         }
 
         /**
@@ -3632,15 +4332,11 @@ public final class MKSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws MKSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new MKSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            NameValueCache.CachedValue v = getValueForUser(cr, name, userId);
+            if (!v.parseFloat()) {
                 throw new MKSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
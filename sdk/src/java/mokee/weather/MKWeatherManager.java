@@ -48,6 +48,8 @@ public class MKWeatherManager {
     private Context mContext;
     private Map<RequestInfo,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
             = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdateRequestListener>());
+    private Map<RequestInfo,WeatherUpdatesRequestListener> mWeatherUpdatesRequestListeners
+            = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdatesRequestListener>());
     private Map<RequestInfo,LookupCityRequestListener> mLookupNameRequestListeners
             = Collections.synchronizedMap(new HashMap<RequestInfo,LookupCityRequestListener>());
     private Handler mHandler;
@@ -136,6 +138,25 @@ public class MKWeatherManager {
      */
     public int requestWeatherUpdate(@NonNull Location location,
             @NonNull WeatherUpdateRequestListener listener) {
+        return requestWeatherUpdate(location, listener, false);
+    }
+
+    /**
+     * Forces the weather service to request the latest available weather information for
+     * the supplied {@link android.location.Location} location.
+     *
+     * @param location The location you want to get the latest weather data from.
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once the active weather
+     *                                                     service provider has finished
+     *                                                     processing your request
+     * @param forceRefresh Whether the active weather service provider must be asked for new
+     *                     data even if a recent result for this location is available
+     * @return An integer that identifies the request submitted to the weather service
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int requestWeatherUpdate(@NonNull Location location,
+            @NonNull WeatherUpdateRequestListener listener, boolean forceRefresh) {
         if (sWeatherManagerService == null) {
             return -1;
         }
@@ -145,11 +166,12 @@ public class MKWeatherManager {
                     MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
                         WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
 
-            RequestInfo info = new RequestInfo
+            RequestInfo.Builder builder = new RequestInfo
                     .Builder(mRequestInfoListener)
                     .setLocation(location)
-                    .setTemperatureUnit(tempUnit)
-                    .build();
+                    .setTemperatureUnit(tempUnit);
+            if (forceRefresh) builder.forceRefresh();
+            RequestInfo info = builder.build();
             if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
             sWeatherManagerService.updateWeather(info);
             return info.hashCode();
@@ -174,6 +196,27 @@ public class MKWeatherManager {
      */
     public int requestWeatherUpdate(@NonNull WeatherLocation weatherLocation,
             @NonNull WeatherUpdateRequestListener listener) {
+        return requestWeatherUpdate(weatherLocation, listener, false);
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for the provided
+     * WeatherLocation. This is the preferred method for requesting a weather update.
+     *
+     * @param weatherLocation A {@link mokee.weather.WeatherLocation} that was previously
+     *                        obtained by calling
+     *                        {@link #lookupCity(String, LookupCityRequestListener)}
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once the active weather
+     *                                                     service provider has finished
+     *                                                     processing your request
+     * @param forceRefresh Whether the active weather service provider must be asked for new
+     *                     data even if a recent result for this location is available
+     * @return An integer that identifies the request submitted to the weather service.
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int requestWeatherUpdate(@NonNull WeatherLocation weatherLocation,
+            @NonNull WeatherUpdateRequestListener listener, boolean forceRefresh) {
         if (sWeatherManagerService == null) {
             return -1;
         }
@@ -183,12 +226,53 @@ public class MKWeatherManager {
                     MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
                         WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
 
-            RequestInfo info = new RequestInfo
+            RequestInfo.Builder builder = new RequestInfo
                     .Builder(mRequestInfoListener)
                     .setWeatherLocation(weatherLocation)
+                    .setTemperatureUnit(tempUnit);
+            if (forceRefresh) builder.forceRefresh();
+            RequestInfo info = builder.build();
+            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
+            sWeatherManagerService.updateWeather(info);
+            return info.hashCode();
+        } catch (RemoteException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for all of the
+     * provided WeatherLocations at once. The active weather service provider will be asked
+     * for the weather of all locations in a single request, and the results are reported
+     * together. The results are not stored in the weather content provider.
+     *
+     * @param weatherLocations A list of {@link mokee.weather.WeatherLocation}s that were
+     *                         previously obtained by calling
+     *                         {@link #lookupCity(String, LookupCityRequestListener)}
+     * @param listener {@link WeatherUpdatesRequestListener} To be notified once the active
+     *                                                      weather service provider has finished
+     *                                                      processing your request
+     * @return An integer that identifies the request submitted to the weather service.
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int requestWeatherUpdates(@NonNull List<WeatherLocation> weatherLocations,
+            @NonNull WeatherUpdatesRequestListener listener) {
+        if (sWeatherManagerService == null) {
+            return -1;
+        }
+
+        try {
+            int tempUnit = MKSettings.Global.getInt(mContext.getContentResolver(),
+                    MKSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                        WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+
+            RequestInfo info = new RequestInfo
+                    .Builder(mRequestInfoListener)
+                    .setWeatherLocations(weatherLocations)
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
+            if (listener != null) mWeatherUpdatesRequestListeners.put(info, listener);
             sWeatherManagerService.updateWeather(info);
             return info.hashCode();
         } catch (RemoteException e) {
@@ -347,6 +431,21 @@ public class MKWeatherManager {
             }
         }
 
+        @Override
+        public void onWeatherBatchRequestCompleted(final RequestInfo requestInfo,
+                final int status, final List<WeatherInfo> weatherInfos) {
+            final WeatherUpdatesRequestListener listener
+                    = mWeatherUpdatesRequestListeners.remove(requestInfo);
+            if (listener != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onWeatherRequestsCompleted(status, weatherInfos);
+                    }
+                });
+            }
+        }
+
         @Override
         public void onLookupCityRequestCompleted(RequestInfo requestInfo, final int status,
             final List<WeatherLocation> weatherLocations) {
@@ -380,6 +479,25 @@ public class MKWeatherManager {
         void onWeatherRequestCompleted(int status, WeatherInfo weatherInfo);
     }
 
+    /**
+     * Interface used to receive notifications upon completion of a weather update request for
+     * several weather locations
+     */
+    public interface WeatherUpdatesRequestListener {
+        /**
+         * This method will be called when the weather service provider has finished processing the
+         * request
+         *
+         * @param status See {@link RequestStatus}
+         *
+         * @param weatherInfos A list holding one {@link WeatherInfo} per requested weather
+         *                     location, in the same order, if the status is
+         *                     {@link RequestStatus#COMPLETED}, null otherwise. Entries are null
+         *                     for the locations for which no data could be obtained
+         */
+        void onWeatherRequestsCompleted(int status, List<WeatherInfo> weatherInfos);
+    }
+
     /**
      * Interface used to receive notifications upon completion of a request to lookup a city name
      */
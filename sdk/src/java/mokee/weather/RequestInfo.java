@@ -27,6 +27,8 @@ import mokee.os.Concierge;
 import mokee.os.Concierge.ParcelInfo;
 import mokee.providers.WeatherContract;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -37,11 +39,13 @@ public final class RequestInfo implements Parcelable {
     private Location mLocation;
     private String mCityName;
     private WeatherLocation mWeatherLocation;
+    private List<WeatherLocation> mWeatherLocations;
     private int mRequestType;
     private IRequestInfoListener mListener;
     private int mTempUnit;
     private String mKey;
     private boolean mIsQueryOnly;
+    private boolean mForceRefresh;
 
     /**
      * A request to update the weather data using a geographical {@link android.location.Location}
@@ -57,16 +61,23 @@ public final class RequestInfo implements Parcelable {
      */
     public static final int TYPE_LOOKUP_CITY_NAME_REQ = 3;
 
+    /**
+     * A request to update the weather data of several {@link WeatherLocation}s at once
+     */
+    public static final int TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ = 4;
+
     private RequestInfo() {}
 
     /* package */ static class Builder {
         private Location mLocation;
         private String mCityName;
         private WeatherLocation mWeatherLocation;
+        private List<WeatherLocation> mWeatherLocations;
         private int mRequestType;
         private IRequestInfoListener mListener;
         private int mTempUnit = WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
         private boolean mIsQueryOnly = false;
+        private boolean mForceRefresh = false;
 
         public Builder(IRequestInfoListener listener) {
             this.mListener = listener;
@@ -85,6 +96,7 @@ public final class RequestInfo implements Parcelable {
             this.mRequestType = TYPE_LOOKUP_CITY_NAME_REQ;
             this.mLocation = null;
             this.mWeatherLocation = null;
+            this.mWeatherLocations = null;
             return this;
         }
 
@@ -101,6 +113,7 @@ public final class RequestInfo implements Parcelable {
             this.mLocation = new Location(location);
             this.mCityName = null;
             this.mWeatherLocation = null;
+            this.mWeatherLocations = null;
             this.mRequestType = TYPE_WEATHER_BY_GEO_LOCATION_REQ;
             return this;
         }
@@ -116,12 +129,34 @@ public final class RequestInfo implements Parcelable {
                 throw new IllegalArgumentException("WeatherLocation can't be null");
             }
             this.mWeatherLocation = weatherLocation;
+            this.mWeatherLocations = null;
             this.mLocation = null;
             this.mCityName = null;
             this.mRequestType = TYPE_WEATHER_BY_WEATHER_LOCATION_REQ;
             return this;
         }
 
+        /**
+         * Sets the weather locations and identifies this request as a
+         * {@link #TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ}. If set, will null out the location,
+         * weather location and city name. Attempting to set a null or empty list, or a list
+         * holding a null weather location will get you an IllegalArgumentException
+         */
+        public Builder setWeatherLocations(List<WeatherLocation> weatherLocations) {
+            if (weatherLocations == null || weatherLocations.isEmpty()) {
+                throw new IllegalArgumentException("WeatherLocation list can't be null or empty");
+            }
+            if (weatherLocations.contains(null)) {
+                throw new IllegalArgumentException("WeatherLocation can't be null");
+            }
+            this.mWeatherLocations = new ArrayList<>(weatherLocations);
+            this.mWeatherLocation = null;
+            this.mLocation = null;
+            this.mCityName = null;
+            this.mRequestType = TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ;
+            return this;
+        }
+
         /**
          * Sets the unit in which the temperature will be reported if the request is honored.
          * Valid values are:
@@ -150,6 +185,7 @@ public final class RequestInfo implements Parcelable {
             switch (mRequestType) {
                 case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
                 case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
                     this.mIsQueryOnly = true;
                     break;
                 default:
@@ -159,6 +195,25 @@ public final class RequestInfo implements Parcelable {
             return this;
         }
 
+        /**
+         * If this is a weather request, marks the request as a forced refresh, meaning that the
+         * active weather service will be asked for new data even if a recent result for the
+         * same location is available.
+         */
+        public Builder forceRefresh() {
+            switch (mRequestType) {
+                case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                    this.mForceRefresh = true;
+                    break;
+                default:
+                    this.mForceRefresh = false;
+                    break;
+            }
+            return this;
+        }
+
         /**
          * Combine all of the options that have been set and return a new {@link RequestInfo} object
          * @return {@link RequestInfo}
@@ -169,9 +224,11 @@ public final class RequestInfo implements Parcelable {
             info.mRequestType = this.mRequestType;
             info.mCityName = this.mCityName;
             info.mWeatherLocation = this.mWeatherLocation;
+            info.mWeatherLocations = this.mWeatherLocations;
             info.mLocation = this.mLocation;
             info.mTempUnit = this.mTempUnit;
             info.mIsQueryOnly = this.mIsQueryOnly;
+            info.mForceRefresh = this.mForceRefresh;
             info.mKey = UUID.randomUUID().toString();
             return info;
         }
@@ -213,6 +270,19 @@ public final class RequestInfo implements Parcelable {
             mListener = IRequestInfoListener.Stub.asInterface(parcel.readStrongBinder());
         }
 
+        if (parcelableVersion >= Build.MK_VERSION_CODES.JACKFRUIT) {
+            mForceRefresh = (parcel.readInt() == 1);
+            if (mRequestType == TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ) {
+                mTempUnit = parcel.readInt();
+                int listSize = parcel.readInt();
+                mWeatherLocations = new ArrayList<>(listSize);
+                while (listSize > 0) {
+                    mWeatherLocations.add(WeatherLocation.CREATOR.createFromParcel(parcel));
+                    listSize--;
+                }
+            }
+        }
+
         // Complete parcel info for the concierge
         parcelInfo.complete();
     }
@@ -241,6 +311,36 @@ public final class RequestInfo implements Parcelable {
         return mWeatherLocation;
     }
 
+    /**
+     * @return the list of {@link mokee.weather.WeatherLocation} if this is a batch request,
+     * null otherwise
+     */
+    public List<WeatherLocation> getWeatherLocations() {
+        return mWeatherLocations != null ? new ArrayList<>(mWeatherLocations) : null;
+    }
+
+    /**
+     * Splits a batch request into one {@link #TYPE_WEATHER_BY_WEATHER_LOCATION_REQ} request per
+     * weather location, in the same order and with the same options.
+     * @return the requests, or null if this is not a batch request
+     * @hide
+     */
+    public List<RequestInfo> getWeatherLocationRequests() {
+        if (mRequestType != TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ) {
+            return null;
+        }
+        List<RequestInfo> requests = new ArrayList<>(mWeatherLocations.size());
+        for (WeatherLocation weatherLocation : mWeatherLocations) {
+            Builder builder = new Builder(mListener)
+                    .setWeatherLocation(weatherLocation)
+                    .setTemperatureUnit(mTempUnit);
+            if (mIsQueryOnly) builder.queryOnly();
+            if (mForceRefresh) builder.forceRefresh();
+            requests.add(builder.build());
+        }
+        return requests;
+    }
+
     /**
      * @hide
      */
@@ -262,6 +362,7 @@ public final class RequestInfo implements Parcelable {
         switch (mRequestType) {
             case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
                 return mTempUnit;
             default:
                 return -1;
@@ -277,12 +378,29 @@ public final class RequestInfo implements Parcelable {
         switch (mRequestType) {
             case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
                 return mIsQueryOnly;
             default:
                 return false;
         }
     }
 
+    /**
+     * @return if this is a weather request, whether recent results must not be used to honor
+     * it. False for other kind of requests
+     * @hide
+     */
+    public boolean isForceRefreshRequest() {
+        switch (mRequestType) {
+            case TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                return mForceRefresh;
+            default:
+                return false;
+        }
+    }
+
     public static final Creator<RequestInfo> CREATOR = new Creator<RequestInfo>() {
         @Override
         public RequestInfo createFromParcel(Parcel in) {
@@ -324,6 +442,16 @@ public final class RequestInfo implements Parcelable {
         dest.writeInt(mIsQueryOnly == true ? 1 : 0);
         dest.writeStrongBinder(mListener.asBinder());
 
+        // ==== JACKFRUIT =====
+        dest.writeInt(mForceRefresh ? 1 : 0);
+        if (mRequestType == TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ) {
+            dest.writeInt(mTempUnit);
+            dest.writeInt(mWeatherLocations.size());
+            for (WeatherLocation weatherLocation : mWeatherLocations) {
+                weatherLocation.writeToParcel(dest, 0);
+            }
+        }
+
         // Complete parcel info for the concierge
         parcelInfo.complete();
     }
@@ -351,6 +479,15 @@ public final class RequestInfo implements Parcelable {
                     builder.append(" Celsius");
                 }
                 break;
+            case TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                builder.append("WeatherLocations: ").append(mWeatherLocations);
+                builder.append(" Temp Unit: ");
+                if (mTempUnit == WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT) {
+                    builder.append("Fahrenheit");
+                } else {
+                    builder.append(" Celsius");
+                }
+                break;
             case TYPE_LOOKUP_CITY_NAME_REQ:
                 builder.append("Lookup City: ").append(mCityName);
                 break;
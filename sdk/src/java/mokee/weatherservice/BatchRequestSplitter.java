@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.weatherservice;
+
+import mokee.weather.MKWeatherManager;
+import mokee.weather.RequestInfo;
+import mokee.weather.WeatherInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serves a batch request with one {@link ServiceRequest} per weather location, for weather
+ * provider services that don't handle batch requests themselves. The batch is completed once
+ * every location request was completed, failed or rejected; locations whose request didn't
+ * complete get a null entry in the results.
+ */
+final class BatchRequestSplitter {
+    private final ServiceRequest mBatch;
+    private final Runnable mOnFinished;
+    private final List<ServiceRequest> mRequests;
+    private final WeatherInfo[] mResults;
+    private int mRemaining;
+
+    /**
+     * @param scheduler The scheduler the location requests are submitted to
+     * @param onFinished Run once the batch request was completed or failed, on any thread
+     */
+    BatchRequestSplitter(ServiceRequest batch, RequestScheduler scheduler, Runnable onFinished) {
+        mBatch = batch;
+        mOnFinished = onFinished;
+        final List<RequestInfo> infos = batch.getRequestInfo().getWeatherLocationRequests();
+        mRequests = new ArrayList<>(infos.size());
+        mResults = new WeatherInfo[infos.size()];
+        mRemaining = infos.size();
+        for (int i = 0; i < infos.size(); i++) {
+            mRequests.add(new ServiceRequest(infos.get(i), new Client(i), scheduler));
+        }
+    }
+
+    /**
+     * @return the location requests, in the order of the weather locations of the batch
+     */
+    List<ServiceRequest> getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Cancels all location requests. The batch request itself is cancelled by the caller.
+     */
+    void cancel() {
+        for (ServiceRequest request : mRequests) {
+            request.cancel();
+        }
+    }
+
+    private void onResult(int index, ServiceRequestResult result, int status) {
+        synchronized (this) {
+            if (status == MKWeatherManager.RequestStatus.COMPLETED && result != null) {
+                mResults[index] = result.getWeatherInfo();
+            }
+            if (--mRemaining > 0) {
+                return;
+            }
+        }
+        // Completing a cancelled batch does nothing
+        mBatch.complete(new ServiceRequestResult.Builder()
+                .setWeatherInfoList(Arrays.asList(mResults))
+                .build());
+        mOnFinished.run();
+    }
+
+    /**
+     * Receives the state of one location request, in place of the system.
+     */
+    private final class Client extends IWeatherProviderServiceClient.Stub {
+        private final int mIndex;
+
+        Client(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void setServiceRequestState(RequestInfo requestInfo,
+                ServiceRequestResult result, int state) {
+            onResult(mIndex, result, state);
+        }
+    }
+}
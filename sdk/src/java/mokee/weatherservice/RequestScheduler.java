@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.weatherservice;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import mokee.weather.RequestInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when the requests submitted to a {@link WeatherProviderService} are handed to the
+ * provider.
+ * <p>
+ * At most {@link #MAX_ACTIVE_REQUESTS} requests are handed to the provider at once, a request
+ * stays active until the provider completes, fails or rejects it. City name lookups are made
+ * while the user waits for them, so they are handed out before weather updates, which are
+ * mostly periodic refreshes. Requests of the same priority are handed out in the order they
+ * were submitted. A request the provider keeps for longer than {@link #ACTIVE_TIMEOUT_MILLIS}
+ * no longer counts against the limit, so that a request the provider dropped can't hold up the
+ * ones behind it. Once it was kept for {@link #EVICT_TIMEOUT_MILLIS}, the request is failed
+ * towards the system and cancelled towards the provider.
+ * <p>
+ * All methods except {@link #onRequestFinished} must be called on the scheduler's handler, the
+ * callbacks are made on it as well.
+ */
+final class RequestScheduler {
+    /* package */ static final int MAX_ACTIVE_REQUESTS = 3;
+    /* package */ static final long ACTIVE_TIMEOUT_MILLIS = 60 * 1000;
+    /* package */ static final long EVICT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static final int PRIORITY_HIGH = 0;
+    private static final int PRIORITY_NORMAL = 1;
+    private static final int PRIORITY_COUNT = 2;
+
+    /**
+     * Receives the requests as the scheduler hands them out or takes them back.
+     */
+    interface Callback {
+        void onRequestSubmitted(ServiceRequest request);
+        void onRequestCancelled(ServiceRequest request);
+    }
+
+    /**
+     * Source of the times requests are submitted, handed out and timed out at.
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private static final class Entry {
+        final int id;
+        final ServiceRequest request;
+        final long submitTime;
+        long dispatchTime;
+        // Cancelled entries are left in the queue and skipped when they come up
+        boolean cancelled;
+
+        Entry(int id, ServiceRequest request, long submitTime) {
+            this.id = id;
+            this.request = request;
+            this.submitTime = submitTime;
+        }
+    }
+
+    /**
+     * Queue depth and latency of one request type.
+     */
+    private static final class Stats {
+        int queued;
+        int maxQueued;
+        long submitted;
+        long dispatched;
+        long finished;
+        long cancelled;
+        long evicted;
+        long totalWaitMillis;
+        long maxWaitMillis;
+        long totalRunMillis;
+        long maxRunMillis;
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final Clock mClock;
+
+    // Requests that were submitted and neither finished nor cancelled, by request id
+    private final Map<Integer, Entry> mRequests = new HashMap<>();
+    private final List<ArrayDeque<Entry>> mQueues = new ArrayList<>(PRIORITY_COUNT);
+    private final List<Entry> mActive = new ArrayList<>(MAX_ACTIVE_REQUESTS);
+    private final SparseArray<Stats> mStats = new SparseArray<>();
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    RequestScheduler(Handler handler, Callback callback) {
+        this(handler, callback, SYSTEM_CLOCK);
+    }
+
+    RequestScheduler(Handler handler, Callback callback, Clock clock) {
+        mHandler = handler;
+        mCallback = callback;
+        mClock = clock;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues.add(new ArrayDeque<Entry>());
+        }
+    }
+
+    /**
+     * Queues a request, and hands it to the provider right away if there is room for it.
+     */
+    void submit(ServiceRequest request) {
+        final RequestInfo info = request.getRequestInfo();
+        final Entry entry = new Entry(getRequestId(info), request,
+                mClock.elapsedRealtime());
+        final Entry previous = mRequests.put(entry.id, entry);
+        if (previous != null) {
+            // Only happens if the system resubmits a request, forget about the old one
+            release(previous);
+        }
+        mQueues.get(getPriority(info.getRequestType())).addLast(entry);
+
+        final Stats stats = getStats(info.getRequestType());
+        stats.submitted++;
+        stats.queued++;
+        stats.maxQueued = Math.max(stats.maxQueued, stats.queued);
+        dispatch();
+    }
+
+    /**
+     * Cancels a request. The provider is only told about it if it was handed the request.
+     */
+    void cancel(int requestId) {
+        final Entry entry = mRequests.remove(requestId);
+        if (entry != null) {
+            cancel(entry);
+            dispatch();
+        }
+    }
+
+    /**
+     * Cancels all requests that were submitted and haven't finished yet.
+     */
+    void cancelAll() {
+        final List<Entry> entries = new ArrayList<>(mRequests.values());
+        mRequests.clear();
+        for (Entry entry : entries) {
+            cancel(entry);
+        }
+        for (ArrayDeque<Entry> queue : mQueues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Frees the slot of a request the provider completed, failed or rejected. May be called on
+     * any thread.
+     */
+    void onRequestFinished(final ServiceRequest request) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int id = getRequestId(request.getRequestInfo());
+                final Entry entry = mRequests.get(id);
+                if (entry == null || entry.request != request) {
+                    return;
+                }
+                mRequests.remove(id);
+                final Stats stats = getStats(request.getRequestInfo().getRequestType());
+                stats.finished++;
+                final long runMillis = mClock.elapsedRealtime() - entry.dispatchTime;
+                stats.totalRunMillis += runMillis;
+                stats.maxRunMillis = Math.max(stats.maxRunMillis, runMillis);
+                mActive.remove(entry);
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Frees the slot of a request that was split into other requests, which are submitted on
+     * their own. The request stays known by id until it finishes, so that it can be cancelled.
+     */
+    void onRequestSplit(ServiceRequest request) {
+        final Entry entry = mRequests.get(getRequestId(request.getRequestInfo()));
+        if (entry != null && entry.request == request && mActive.remove(entry)) {
+            dispatch();
+        }
+    }
+
+    private void cancel(Entry entry) {
+        final boolean wasActive = entry.dispatchTime > 0;
+        release(entry);
+        entry.request.cancel();
+        getStats(entry.request.getRequestInfo().getRequestType()).cancelled++;
+        if (wasActive) {
+            mCallback.onRequestCancelled(entry.request);
+        }
+    }
+
+    /**
+     * Takes an entry out of the queue or frees its slot, whichever it holds.
+     */
+    private void release(Entry entry) {
+        if (entry.dispatchTime > 0) {
+            mActive.remove(entry);
+        } else if (!entry.cancelled) {
+            getStats(entry.request.getRequestInfo().getRequestType()).queued--;
+        }
+        entry.cancelled = true;
+    }
+
+    private void dispatch() {
+        mHandler.removeCallbacks(mDispatch);
+        final long now = mClock.elapsedRealtime();
+        expireActive(now);
+        evictExpired(now);
+
+        while (mActive.size() < MAX_ACTIVE_REQUESTS) {
+            final Entry entry = pollNext();
+            if (entry == null) {
+                break;
+            }
+            final Stats stats = getStats(entry.request.getRequestInfo().getRequestType());
+            stats.queued--;
+            stats.dispatched++;
+            final long waitMillis = now - entry.submitTime;
+            stats.totalWaitMillis += waitMillis;
+            stats.maxWaitMillis = Math.max(stats.maxWaitMillis, waitMillis);
+
+            entry.dispatchTime = now;
+            mActive.add(entry);
+            mCallback.onRequestSubmitted(entry.request);
+        }
+
+        long nextRun = Long.MAX_VALUE;
+        if (hasQueued()) {
+            // Try again once the oldest active request times out
+            for (Entry entry : mActive) {
+                nextRun = Math.min(nextRun, entry.dispatchTime + ACTIVE_TIMEOUT_MILLIS);
+            }
+        }
+        for (Entry entry : mRequests.values()) {
+            if (entry.dispatchTime > 0) {
+                nextRun = Math.min(nextRun, entry.dispatchTime + EVICT_TIMEOUT_MILLIS);
+            }
+        }
+        if (nextRun != Long.MAX_VALUE) {
+            mHandler.postDelayed(mDispatch, Math.max(0, nextRun - now));
+        }
+    }
+
+    private void expireActive(long now) {
+        for (int i = mActive.size() - 1; i >= 0; i--) {
+            if (now - mActive.get(i).dispatchTime >= ACTIVE_TIMEOUT_MILLIS) {
+                // Stays known by id, so that it can still be cancelled
+                mActive.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Forgets requests the provider kept for too long, which it most likely dropped.
+     */
+    private void evictExpired(long now) {
+        List<Entry> evicted = null;
+        final Iterator<Entry> it = mRequests.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.dispatchTime > 0 && now - entry.dispatchTime >= EVICT_TIMEOUT_MILLIS) {
+                it.remove();
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(entry);
+            }
+        }
+        if (evicted == null) {
+            return;
+        }
+        for (Entry entry : evicted) {
+            getStats(entry.request.getRequestInfo().getRequestType()).evicted++;
+            release(entry);
+            // Let the system know it won't get a result, then stop the provider
+            entry.request.fail();
+            entry.request.cancel();
+            mCallback.onRequestCancelled(entry.request);
+        }
+    }
+
+    private Entry pollNext() {
+        for (ArrayDeque<Entry> queue : mQueues) {
+            Entry entry;
+            while ((entry = queue.pollFirst()) != null) {
+                if (!entry.cancelled) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean hasQueued() {
+        for (ArrayDeque<Entry> queue : mQueues) {
+            for (Entry entry : queue) {
+                if (!entry.cancelled) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Stats getStats(int requestType) {
+        Stats stats = mStats.get(requestType);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(requestType, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * The id the system uses to cancel a request, see {@link IWeatherProviderService#cancelRequest}
+     */
+    static int getRequestId(RequestInfo info) {
+        return info.hashCode();
+    }
+
+    private static int getPriority(int requestType) {
+        switch (requestType) {
+            case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                return PRIORITY_HIGH;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    private static String getRequestTypeName(int requestType) {
+        switch (requestType) {
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ: return "weather by geo location";
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                return "weather by weather location";
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                return "weather by weather locations";
+            case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ: return "city name lookup";
+            default: return Integer.toString(requestType);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Requests:");
+        pw.println("  Active: " + mActive.size() + " of " + MAX_ACTIVE_REQUESTS);
+        pw.println("  Pending: " + mRequests.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            final Stats stats = mStats.valueAt(i);
+            pw.println("  " + getRequestTypeName(mStats.keyAt(i)) + ":");
+            pw.println("   Queued: " + stats.queued + " (max " + stats.maxQueued + ")");
+            pw.println("   Submitted: " + stats.submitted + ", dispatched: " + stats.dispatched
+                    + ", finished: " + stats.finished + ", cancelled: " + stats.cancelled
+                    + ", evicted: " + stats.evicted);
+            pw.println("   Wait: " + (stats.dispatched > 0
+                    ? stats.totalWaitMillis / stats.dispatched : 0) + "ms average, "
+                    + stats.maxWaitMillis + "ms max");
+            pw.println("   Run: " + (stats.finished > 0
+                    ? stats.totalRunMillis / stats.finished : 0) + "ms average, "
+                    + stats.maxRunMillis + "ms max");
+        }
+    }
+}
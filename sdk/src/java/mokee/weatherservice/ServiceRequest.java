@@ -21,6 +21,10 @@ import android.annotation.NonNull;
 import android.os.RemoteException;
 import mokee.weather.MKWeatherManager;
 import mokee.weather.RequestInfo;
+import mokee.weather.WeatherInfo;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This class represents a request submitted by the system to the active weather provider service
@@ -29,15 +33,18 @@ public final class ServiceRequest {
 
     private final RequestInfo mInfo;
     private final IWeatherProviderServiceClient mClient;
+    private final RequestScheduler mScheduler;
 
     private enum Status {
         IN_PROGRESS, COMPLETED, CANCELLED, FAILED, REJECTED
     }
     private Status mStatus;
 
-    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client) {
+    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client,
+            RequestScheduler scheduler) {
         mInfo = info;
         mClient = client;
+        mScheduler = scheduler;
         mStatus = Status.IN_PROGRESS;
     }
 
@@ -67,6 +74,23 @@ public final class ServiceRequest {
                             mClient.setServiceRequestState(mInfo, result,
                                     MKWeatherManager.RequestStatus.COMPLETED);
                             break;
+                        case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
+                            final List<WeatherInfo> weatherInfos = result.getWeatherInfoList();
+                            if (weatherInfos == null || weatherInfos.size()
+                                    != mInfo.getWeatherLocations().size()) {
+                                throw new IllegalStateException("The service request result doesn't"
+                                        + " contain one WeatherInfo entry per weather location");
+                            }
+                            if (Collections.frequency(weatherInfos, null)
+                                    == weatherInfos.size()) {
+                                //No data for any of the locations
+                                mClient.setServiceRequestState(mInfo, null,
+                                        MKWeatherManager.RequestStatus.FAILED);
+                            } else {
+                                mClient.setServiceRequestState(mInfo, result,
+                                        MKWeatherManager.RequestStatus.COMPLETED);
+                            }
+                            break;
                         case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
                             if (result.getLocationLookupList() == null
                                     || result.getLocationLookupList().size() <= 0) {
@@ -83,8 +107,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.COMPLETED;
+            } else {
+                return;
             }
         }
+        if (mScheduler != null) mScheduler.onRequestFinished(this);
     }
 
     /**
@@ -99,6 +126,7 @@ public final class ServiceRequest {
                     switch (requestType) {
                         case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
                         case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                        case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ:
                             mClient.setServiceRequestState(mInfo, null,
                                     MKWeatherManager.RequestStatus.FAILED);
                             break;
@@ -110,8 +138,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.FAILED;
+            } else {
+                return;
             }
         }
+        if (mScheduler != null) mScheduler.onRequestFinished(this);
     }
 
     /**
@@ -140,8 +171,11 @@ public final class ServiceRequest {
                         throw new IllegalArgumentException("Can't reject with status " + status);
                 }
                 mStatus = Status.REJECTED;
+            } else {
+                return;
             }
         }
+        if (mScheduler != null) mScheduler.onRequestFinished(this);
     }
 
     /**
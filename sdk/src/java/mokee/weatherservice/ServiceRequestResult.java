@@ -39,6 +39,7 @@ public final class ServiceRequestResult implements Parcelable {
 
     private WeatherInfo mWeatherInfo;
     private List<WeatherLocation> mLocationLookupList;
+    private List<WeatherInfo> mWeatherInfoList;
     private String mKey;
 
     private ServiceRequestResult() {}
@@ -65,6 +66,19 @@ public final class ServiceRequestResult implements Parcelable {
             }
         }
 
+        if (parcelableVersion >= Build.MK_VERSION_CODES.JACKFRUIT) {
+            int hasWeatherInfoList = in.readInt();
+            if (hasWeatherInfoList == 1) {
+                int listSize = in.readInt();
+                mWeatherInfoList = new ArrayList<>(listSize);
+                while (listSize > 0) {
+                    mWeatherInfoList.add(in.readInt() == 1
+                            ? WeatherInfo.CREATOR.createFromParcel(in) : null);
+                    listSize--;
+                }
+            }
+        }
+
         // Complete parcel info for the concierge
         parcelInfo.complete();
     }
@@ -110,6 +124,22 @@ public final class ServiceRequestResult implements Parcelable {
             dest.writeInt(0);
         }
 
+        // ==== JACKFRUIT =====
+        if (mWeatherInfoList != null) {
+            dest.writeInt(1);
+            dest.writeInt(mWeatherInfoList.size());
+            for (WeatherInfo weatherInfo : mWeatherInfoList) {
+                if (weatherInfo != null) {
+                    dest.writeInt(1);
+                    weatherInfo.writeToParcel(dest, 0);
+                } else {
+                    dest.writeInt(0);
+                }
+            }
+        } else {
+            dest.writeInt(0);
+        }
+
         // Complete parcel info for the concierge
         parcelInfo.complete();
     }
@@ -120,6 +150,7 @@ public final class ServiceRequestResult implements Parcelable {
     public static class Builder {
         private WeatherInfo mWeatherInfo;
         private List<WeatherLocation> mLocationLookupList;
+        private List<WeatherInfo> mWeatherInfoList;
         public Builder() {
             this.mWeatherInfo = null;
             this.mLocationLookupList = null;
@@ -147,6 +178,21 @@ public final class ServiceRequestResult implements Parcelable {
             mLocationLookupList = locations;
         }
 
+        /**
+         * Sets the results of a
+         * {@link mokee.weather.RequestInfo#TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ} request
+         * @param weatherInfoList One WeatherInfo object per weather location of the request, in
+         *                        the same order. Use null for the locations for which no data
+         *                        could be obtained. The list should not be null
+         */
+        public Builder setWeatherInfoList(@NonNull List<WeatherInfo> weatherInfoList) {
+            if (weatherInfoList == null) {
+                throw new IllegalArgumentException("WeatherInfo list can't be null");
+            }
+            mWeatherInfoList = new ArrayList<>(weatherInfoList);
+            return this;
+        }
+
         /**
          * Creates a {@link ServiceRequestResult} with the arguments
          * supplied to this builder
@@ -156,6 +202,7 @@ public final class ServiceRequestResult implements Parcelable {
             ServiceRequestResult result = new ServiceRequestResult();
             result.mWeatherInfo = this.mWeatherInfo;
             result.mLocationLookupList = this.mLocationLookupList;
+            result.mWeatherInfoList = this.mWeatherInfoList;
             result.mKey = UUID.randomUUID().toString();
             return result;
         }
@@ -175,6 +222,14 @@ public final class ServiceRequestResult implements Parcelable {
         return new ArrayList<>(mLocationLookupList);
     }
 
+    /**
+     * @return The list of WeatherInfo objects supplied by the weather provider service for a
+     * batch request, null if none was supplied
+     */
+    public List<WeatherInfo> getWeatherInfoList() {
+        return mWeatherInfoList != null ? new ArrayList<>(mWeatherInfoList) : null;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -25,11 +25,12 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.util.ArrayMap;
 import mokee.weather.RequestInfo;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Map;
 
 /**
  * This is the base class for implementing a weather provider service. A weather provider service
@@ -55,13 +56,18 @@ import java.util.WeakHashMap;
  *    &lt;/service&gt;
  * </pre>
  *
+ * Requests are handed to {@link #onRequestSubmitted(ServiceRequest)} a few at a time. City name
+ * lookups, which the user is waiting for, go before weather updates; every other request waits
+ * until the service completes, fails or rejects one it is already working on.
+ *
  */
 public abstract class WeatherProviderService extends Service {
 
     private Handler mHandler;
     private IWeatherProviderServiceClient mClient;
-    private Set<ServiceRequest> mWeakRequestsSet
-            = Collections.newSetFromMap(new WeakHashMap<ServiceRequest, Boolean>());
+    private RequestScheduler mScheduler;
+    // Batch requests served by the default onBatchRequestSubmitted(), guarded by itself
+    private final Map<ServiceRequest, BatchRequestSplitter> mBatchSplitters = new ArrayMap<>();
 
     /**
      * The {@link android.content.Intent} action that must be declared as handled by a service in
@@ -83,6 +89,35 @@ public abstract class WeatherProviderService extends Service {
     protected final void attachBaseContext(Context base) {
         super.attachBaseContext(base);
         mHandler = new ServiceHandler(base.getMainLooper());
+        mScheduler = new RequestScheduler(mHandler, new RequestScheduler.Callback() {
+            @Override
+            public void onRequestSubmitted(ServiceRequest request) {
+                if (request.getRequestInfo().getRequestType()
+                        == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ) {
+                    onBatchRequestSubmitted(request);
+                } else {
+                    WeatherProviderService.this.onRequestSubmitted(request);
+                }
+            }
+
+            @Override
+            public void onRequestCancelled(ServiceRequest request) {
+                final BatchRequestSplitter splitter;
+                synchronized (mBatchSplitters) {
+                    splitter = mBatchSplitters.remove(request);
+                }
+                if (splitter == null) {
+                    WeatherProviderService.this.onRequestCancelled(request);
+                    return;
+                }
+                splitter.cancel();
+                // Only the location requests that were handed out reach onRequestCancelled()
+                for (ServiceRequest locationRequest : splitter.getRequests()) {
+                    mScheduler.cancel(
+                            RequestScheduler.getRequestId(locationRequest.getRequestInfo()));
+                }
+            }
+        });
     }
 
     @Override
@@ -102,6 +137,11 @@ public abstract class WeatherProviderService extends Service {
             mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
         }
 
+        @Override
+        public void processWeatherBatchUpdateRequest(final RequestInfo info) {
+            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
+        }
+
         @Override
         public void setServiceClient(IWeatherProviderServiceClient client) {
             mHandler.obtainMessage(ServiceHandler.MSG_SET_CLIENT, client).sendToTarget();
@@ -109,29 +149,13 @@ public abstract class WeatherProviderService extends Service {
 
         @Override
         public void cancelOngoingRequests() {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    request.cancel();
-                    mWeakRequestsSet.remove(request);
-                    mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                            .sendToTarget();
-                }
-            }
+            mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_ALL_REQUESTS).sendToTarget();
         }
 
         @Override
         public void cancelRequest(int requestId) {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    if (request.getRequestInfo().hashCode() == requestId) {
-                        mWeakRequestsSet.remove(request);
-                        request.cancel();
-                        mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                                .sendToTarget();
-                        break;
-                    }
-                }
-            }
+            mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, requestId, 0)
+                    .sendToTarget();
         }
     };
 
@@ -143,6 +167,7 @@ public abstract class WeatherProviderService extends Service {
         public static final int MSG_SET_CLIENT = 1;
         public static final int MSG_ON_NEW_REQUEST = 2;
         public static final int MSG_CANCEL_REQUEST = 3;
+        public static final int MSG_CANCEL_ALL_REQUESTS = 4;
 
         @Override
         public void handleMessage(Message msg) {
@@ -159,23 +184,32 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_ON_NEW_REQUEST: {
                     RequestInfo info = (RequestInfo) msg.obj;
                     if (info != null) {
-                        ServiceRequest request = new ServiceRequest(info, mClient);
-                        synchronized (mWeakRequestsSet) {
-                            mWeakRequestsSet.add(request);
-                        }
-                        onRequestSubmitted(request);
+                        mScheduler.submit(new ServiceRequest(info, mClient, mScheduler));
                     }
                     return;
                 }
                 case MSG_CANCEL_REQUEST: {
-                    ServiceRequest request = (ServiceRequest) msg.obj;
-                    onRequestCancelled(request);
+                    mScheduler.cancel(msg.arg1);
+                    return;
+                }
+                case MSG_CANCEL_ALL_REQUESTS: {
+                    mScheduler.cancelAll();
                     return;
                 }
             }
         }
     }
 
+    /**
+     * Dumps the state of the request queue. Services overriding this method should call through
+     * to the super class implementation.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(getClass().getSimpleName() + " state:");
+        mScheduler.dump(pw);
+    }
+
     /**
      * The system has connected to this service.
      */
@@ -196,6 +230,55 @@ public abstract class WeatherProviderService extends Service {
      */
     protected abstract void onRequestSubmitted(ServiceRequest request);
 
+    /**
+     * A new {@link RequestInfo#TYPE_WEATHER_BY_WEATHER_LOCATION_BATCH_REQ} request has been
+     * submitted to this service. Services that can fetch the weather of several locations at
+     * once should override this method, and complete the request with a
+     * {@link ServiceRequestResult} holding one {@link mokee.weather.WeatherInfo} per location.
+     * <p>
+     * The default implementation splits the batch into one
+     * {@link RequestInfo#TYPE_WEATHER_BY_WEATHER_LOCATION_REQ} request per location, which are
+     * handed to {@link #onRequestSubmitted(ServiceRequest)} a few at a time like any other
+     * request, and completes the batch once all of them were processed. If the batch is
+     * cancelled, the location requests already handed out are passed to
+     * {@link #onRequestCancelled(ServiceRequest)} instead of the batch.
+     *
+     * @param request The batch request to be processed by this service
+     */
+    protected void onBatchRequestSubmitted(final ServiceRequest request) {
+        final BatchRequestSplitter splitter = new BatchRequestSplitter(request, mScheduler,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mBatchSplitters) {
+                            mBatchSplitters.remove(request);
+                        }
+                    }
+                });
+        synchronized (mBatchSplitters) {
+            mBatchSplitters.put(request, splitter);
+        }
+        // Submitted from a message of its own, since the scheduler is handing out the batch
+        // right now
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mBatchSplitters) {
+                    if (mBatchSplitters.get(request) != splitter) {
+                        // Cancelled in the meantime
+                        return;
+                    }
+                }
+                // The location requests take the slots, so that batches holding all of them
+                // can't keep their location requests waiting
+                mScheduler.onRequestSplit(request);
+                for (ServiceRequest locationRequest : splitter.getRequests()) {
+                    mScheduler.submit(locationRequest);
+                }
+            }
+        });
+    }
+
     /**
      * Called when the system is not interested on this request anymore. Note that the service
      * <b>has marked the request as cancelled</b> and you must stop any ongoing operation
@@ -427,6 +427,19 @@ public final class MKNotificationLights {
             ContentResolver resolver = mContext.getContentResolver();
             Resources res = mContext.getResources();
 
+            // Read everything below in a single round trip
+            MKSettings.System.prefetchForUser(resolver, UserHandle.USER_CURRENT,
+                    MKSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
+                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                    MKSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    MKSettings.System.NOTIFICATION_LIGHT_SCREEN_ON,
+                    MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                    MKSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                    MKSettings.System.ZEN_ALLOW_LIGHTS);
+
             // Whether the notification led is enabled
             mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
                     Settings.System.NOTIFICATION_LIGHT_PULSE,
@@ -17,6 +17,7 @@
 
 package org.mokee.internal.statusbar;
 
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -402,11 +403,17 @@ public class NetworkTraffic extends TextView {
 
     private void updateSettings() {
         ContentResolver resolver = mContext.getContentResolver();
+        // The client side cache only resolves USER_CURRENT in the system server
+        final int userId = ActivityManager.getCurrentUser();
+
+        MKSettings.Secure.prefetchForUser(resolver, userId,
+                MKSettings.Secure.NETWORK_TRAFFIC_MODE,
+                MKSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE);
 
         mMode = MKSettings.Secure.getIntForUser(resolver,
-                MKSettings.Secure.NETWORK_TRAFFIC_MODE, 3, UserHandle.USER_CURRENT);
+                MKSettings.Secure.NETWORK_TRAFFIC_MODE, 3, userId);
         mAutoHide = MKSettings.Secure.getIntForUser(resolver,
-                MKSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE, 0, UserHandle.USER_CURRENT) == 1;
+                MKSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE, 0, userId) == 1;
         mAutoHideThreshold = AUTOHIDE_THRESHOLD_KILOBYTES;
 
         if (mMode != MODE_DISABLED) {
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.weatherservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import mokee.weather.MKWeatherManager;
+import mokee.weather.RequestInfo;
+import mokee.weather.WeatherLocation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RequestSchedulerTest {
+    private static final int MAX_ACTIVE = RequestScheduler.MAX_ACTIVE_REQUESTS;
+
+    /**
+     * Holds on to posted messages instead of queueing them, so that the tests decide when
+     * they run.
+     */
+    private static final class ManualHandler extends Handler {
+        private final List<Message> mMessages = new ArrayList<>();
+
+        ManualHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mMessages.add(msg);
+            return true;
+        }
+
+        /**
+         * Runs the messages posted so far. Messages posted while they run are kept for the
+         * next call.
+         */
+        void runPending() {
+            final List<Message> messages = new ArrayList<>(mMessages);
+            mMessages.clear();
+            for (Message msg : messages) {
+                msg.getCallback().run();
+            }
+        }
+    }
+
+    private static final class ManualClock implements RequestScheduler.Clock {
+        // Entries use a zero dispatch time to tell that they weren't handed out
+        long now = 1000;
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+
+    private final List<ServiceRequest> mSubmitted = new ArrayList<>();
+    private final List<ServiceRequest> mCancelled = new ArrayList<>();
+    private final Map<RequestInfo, Integer> mStates = new HashMap<>();
+
+    private final IWeatherProviderServiceClient mClient =
+            new IWeatherProviderServiceClient.Stub() {
+        @Override
+        public void setServiceRequestState(RequestInfo requestInfo,
+                ServiceRequestResult result, int state) {
+            mStates.put(requestInfo, state);
+        }
+    };
+
+    private ManualHandler mHandler;
+    private ManualClock mClock;
+    private RequestScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mHandler = new ManualHandler();
+        mClock = new ManualClock();
+        mScheduler = new RequestScheduler(mHandler, new RequestScheduler.Callback() {
+            @Override
+            public void onRequestSubmitted(ServiceRequest request) {
+                mSubmitted.add(request);
+            }
+
+            @Override
+            public void onRequestCancelled(ServiceRequest request) {
+                mCancelled.add(request);
+            }
+        }, mClock);
+    }
+
+    @Test
+    public void testLimitsActiveRequests() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 2);
+        assertEquals(requests.subList(0, MAX_ACTIVE), mSubmitted);
+
+        requests.get(0).fail();
+        mHandler.runPending();
+        assertEquals(requests.subList(0, MAX_ACTIVE + 1), mSubmitted);
+    }
+
+    @Test
+    public void testCityLookupsGoFirst() {
+        List<ServiceRequest> weather = submitWeatherRequests(MAX_ACTIVE + 1);
+        ServiceRequest lookup = newRequest(new RequestInfo.Builder(null)
+                .setCityName("Shenzhen").build());
+        mScheduler.submit(lookup);
+        assertEquals(MAX_ACTIVE, mSubmitted.size());
+
+        weather.get(0).fail();
+        mHandler.runPending();
+        assertEquals(lookup, mSubmitted.get(MAX_ACTIVE));
+
+        weather.get(1).fail();
+        mHandler.runPending();
+        assertEquals(weather.get(MAX_ACTIVE), mSubmitted.get(MAX_ACTIVE + 1));
+    }
+
+    @Test
+    public void testSamePriorityInSubmitOrder() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 2);
+        requests.get(1).fail();
+        requests.get(0).fail();
+        mHandler.runPending();
+        assertEquals(requests, mSubmitted);
+    }
+
+    @Test
+    public void testCancelQueuedRequest() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 2);
+        mScheduler.cancel(RequestScheduler.getRequestId(
+                requests.get(MAX_ACTIVE).getRequestInfo()));
+        // The provider never saw it, so it isn't told about it
+        assertTrue(mCancelled.isEmpty());
+
+        requests.get(0).fail();
+        mHandler.runPending();
+        assertEquals(MAX_ACTIVE + 1, mSubmitted.size());
+        assertEquals(requests.get(MAX_ACTIVE + 1), mSubmitted.get(MAX_ACTIVE));
+    }
+
+    @Test
+    public void testCancelActiveRequest() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 1);
+        mScheduler.cancel(RequestScheduler.getRequestId(requests.get(1).getRequestInfo()));
+        assertEquals(Arrays.asList(requests.get(1)), mCancelled);
+        // The slot is freed right away
+        assertEquals(requests, mSubmitted);
+
+        // A cancelled request doesn't report to the system anymore
+        requests.get(1).fail();
+        assertFalse(mStates.containsKey(requests.get(1).getRequestInfo()));
+    }
+
+    @Test
+    public void testCancelAll() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 1);
+        mScheduler.cancelAll();
+        assertEquals(MAX_ACTIVE, mCancelled.size());
+        assertTrue(mCancelled.containsAll(requests.subList(0, MAX_ACTIVE)));
+
+        mHandler.runPending();
+        assertEquals(MAX_ACTIVE, mSubmitted.size());
+    }
+
+    @Test
+    public void testActiveTimeoutFreesSlot() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE + 1);
+
+        mClock.now += RequestScheduler.ACTIVE_TIMEOUT_MILLIS - 1;
+        mHandler.runPending();
+        assertEquals(MAX_ACTIVE, mSubmitted.size());
+
+        mClock.now += 1;
+        mHandler.runPending();
+        assertEquals(requests, mSubmitted);
+        // Timed out requests are still running and can still be cancelled
+        assertTrue(mCancelled.isEmpty());
+        mScheduler.cancel(RequestScheduler.getRequestId(requests.get(0).getRequestInfo()));
+        assertEquals(Arrays.asList(requests.get(0)), mCancelled);
+    }
+
+    @Test
+    public void testUnfinishedRequestsAreEvicted() {
+        List<ServiceRequest> requests = submitWeatherRequests(MAX_ACTIVE);
+
+        mClock.now += RequestScheduler.EVICT_TIMEOUT_MILLIS;
+        mHandler.runPending();
+        assertEquals(requests.size(), mCancelled.size());
+        for (ServiceRequest request : requests) {
+            assertEquals(MKWeatherManager.RequestStatus.FAILED,
+                    (int) mStates.get(request.getRequestInfo()));
+        }
+
+        // Evicted requests are forgotten
+        mCancelled.clear();
+        mScheduler.cancel(RequestScheduler.getRequestId(requests.get(0).getRequestInfo()));
+        assertTrue(mCancelled.isEmpty());
+    }
+
+    private ServiceRequest newRequest(RequestInfo info) {
+        return new ServiceRequest(info, mClient, mScheduler);
+    }
+
+    private List<ServiceRequest> submitWeatherRequests(int count) {
+        List<ServiceRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ServiceRequest request = newRequest(new RequestInfo.Builder(null)
+                    .setWeatherLocation(new WeatherLocation.Builder("City " + i).build())
+                    .build());
+            mScheduler.submit(request);
+            requests.add(request);
+        }
+        return requests;
+    }
+}
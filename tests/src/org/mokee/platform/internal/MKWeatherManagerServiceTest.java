@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import mokee.providers.WeatherContract.WeatherColumns;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MKWeatherManagerServiceTest {
+    private static final long TIMESTAMP = 1571400000000L;
+    private static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    @Test
+    public void testSameWeather() {
+        assertTrue(isSameWeather(newRows(TIMESTAMP, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testNothingPersisted() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP, 21.5, 18.0), null));
+    }
+
+    @Test
+    public void testTimestampOnlyChangeWithinMaxAge() {
+        assertTrue(isSameWeather(newRows(TIMESTAMP + MAX_AGE_MILLIS - 1, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testTimestampOnlyChangePastMaxAge() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP + MAX_AGE_MILLIS, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testOlderTimestamp() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP - 1, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testTimestampChangeWithoutMaxAge() {
+        assertTrue(MKWeatherManagerService.isSameWeather(newRows(TIMESTAMP, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0), 0));
+        assertFalse(MKWeatherManagerService.isSameWeather(newRows(TIMESTAMP + 1, 21.5, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0), 0));
+    }
+
+    @Test
+    public void testTimestampAndValueChange() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP + 1, 22.0, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testCurrentConditionsChange() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP, 22.0, 18.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testForecastChange() {
+        assertFalse(isSameWeather(newRows(TIMESTAMP, 21.5, 17.0),
+                newRows(TIMESTAMP, 21.5, 18.0)));
+    }
+
+    @Test
+    public void testForecastDayCountChange() {
+        ContentValues[] rows = newRows(TIMESTAMP, 21.5, 18.0);
+        ContentValues[] fewerRows = new ContentValues[] { rows[0], rows[1] };
+        assertFalse(isSameWeather(fewerRows, rows));
+        assertFalse(isSameWeather(rows, fewerRows));
+    }
+
+    @Test
+    public void testColumnAddedOrRemoved() {
+        ContentValues[] persisted = newRows(TIMESTAMP, 21.5, 18.0);
+        ContentValues[] rows = newRows(TIMESTAMP, 21.5, 18.0);
+        rows[0].put(WeatherColumns.CURRENT_AQI, 42);
+        assertFalse(isSameWeather(rows, persisted));
+        assertFalse(isSameWeather(persisted, rows));
+    }
+
+    @Test
+    public void testColumnReplaced() {
+        ContentValues[] persisted = newRows(TIMESTAMP, 21.5, 18.0);
+        ContentValues[] rows = newRows(TIMESTAMP, 21.5, 18.0);
+        persisted[0].put(WeatherColumns.CURRENT_AQI, 42);
+        rows[0].put(WeatherColumns.CURRENT_UV, 42);
+        assertFalse(isSameWeather(rows, persisted));
+    }
+
+    @Test
+    public void testNullValues() {
+        ContentValues[] persisted = newRows(TIMESTAMP, 21.5, 18.0);
+        ContentValues[] rows = newRows(TIMESTAMP, 21.5, 18.0);
+        persisted[0].putNull(WeatherColumns.CURRENT_CONDITION);
+        rows[0].putNull(WeatherColumns.CURRENT_CONDITION);
+        assertTrue(isSameWeather(rows, persisted));
+
+        rows[0].put(WeatherColumns.CURRENT_CONDITION, "Sunny");
+        assertFalse(isSameWeather(rows, persisted));
+    }
+
+    private static boolean isSameWeather(ContentValues[] rows, ContentValues[] persistedRows) {
+        return MKWeatherManagerService.isSameWeather(rows, persistedRows, MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Builds the rows of a reading the way they are written: the current conditions first,
+     * followed by one row per forecast day.
+     */
+    private static ContentValues[] newRows(long timestamp, double temperature,
+            double forecastLow) {
+        ContentValues current = new ContentValues();
+        current.put(WeatherColumns.CURRENT_CITY, "Shenzhen");
+        current.put(WeatherColumns.CURRENT_TEMPERATURE, temperature);
+        current.put(WeatherColumns.CURRENT_HUMIDITY, 65.0);
+        current.put(WeatherColumns.CURRENT_TIMESTAMP, timestamp);
+
+        ContentValues[] rows = new ContentValues[3];
+        rows[0] = current;
+        for (int i = 1; i < rows.length; i++) {
+            ContentValues forecast = new ContentValues();
+            forecast.put(WeatherColumns.FORECAST_LOW, forecastLow + i);
+            forecast.put(WeatherColumns.FORECAST_HIGH, forecastLow + 10 + i);
+            rows[i] = forecast;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import mokee.app.Profile.ScheduleWindow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileSchedulerTest {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static final String[] NONE = new String[0];
+
+    @Test
+    public void testTriggerIdRoundTrip() {
+        ScheduleWindow window = new ScheduleWindow(
+                ScheduleWindow.MONDAY | ScheduleWindow.FRIDAY, 9 * 60, 17 * 60 + 30);
+        ScheduleWindow parsed = ScheduleWindow.fromTriggerId(window.toTriggerId());
+        assertNotNull(parsed);
+        assertEquals(window.getDays(), parsed.getDays());
+        assertEquals(window.getStartMinute(), parsed.getStartMinute());
+        assertEquals(window.getEndMinute(), parsed.getEndMinute());
+    }
+
+    @Test
+    public void testInvalidTriggerIds() {
+        final String[] ids = {
+            null,
+            "",
+            "00:11:22:33:44:55",
+            "schedule:",
+            "schedule:1",
+            "schedule:1:60",
+            "schedule:x:60-120",
+            "schedule:1:60-",
+            "schedule:1:-60-120",
+            "schedule:1:60-120-180",
+            // No days, or days past Saturday
+            "schedule:0:60-120",
+            "schedule:128:60-120",
+            // Times outside of a day, or an empty window
+            "schedule:1:60-1440",
+            "schedule:1:1440-60",
+            "schedule:1:60-60",
+        };
+        for (String id : ids) {
+            assertNull(id, ScheduleWindow.fromTriggerId(id));
+        }
+    }
+
+    @Test
+    public void testInvalidWindows() {
+        final int[][] windows = {
+            { 0, 60, 120 },
+            { ScheduleWindow.EVERY_DAY + 1, 60, 120 },
+            { ScheduleWindow.SUNDAY, -1, 120 },
+            { ScheduleWindow.SUNDAY, 60, MINUTES_PER_DAY },
+            { ScheduleWindow.SUNDAY, 60, 60 },
+        };
+        for (int[] window : windows) {
+            try {
+                new ScheduleWindow(window[0], window[1], window[2]);
+                fail("Created invalid window " + Arrays.toString(window));
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testWindowOpensAndCloses() {
+        final String id = new ScheduleWindow(ScheduleWindow.MONDAY, 9 * 60, 17 * 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions =
+                ProfileScheduler.buildTransitions(Collections.singletonList(id));
+
+        assertEquals(2, transitions.length);
+        assertTransition(transitions[0], minuteOfWeek(1, 9 * 60), NONE, new String[] { id });
+        assertTransition(transitions[1], minuteOfWeek(1, 17 * 60), new String[] { id }, NONE);
+    }
+
+    @Test
+    public void testTransitionsAreOrderedByMinuteOfWeek() {
+        final String tuesday = new ScheduleWindow(ScheduleWindow.TUESDAY, 8 * 60, 9 * 60)
+                .toTriggerId();
+        final String weekend = new ScheduleWindow(
+                ScheduleWindow.SUNDAY | ScheduleWindow.SATURDAY, 10 * 60, 12 * 60)
+                .toTriggerId();
+        final String monday = new ScheduleWindow(ScheduleWindow.MONDAY, 22 * 60, 23 * 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions =
+                ProfileScheduler.buildTransitions(Arrays.asList(tuesday, weekend, monday));
+
+        assertEquals(8, transitions.length);
+        for (int i = 1; i < transitions.length; i++) {
+            assertTrue(transitions[i - 1].minuteOfWeek < transitions[i].minuteOfWeek);
+        }
+        assertTransition(transitions[0], minuteOfWeek(0, 10 * 60), NONE,
+                new String[] { weekend });
+        assertTransition(transitions[2], minuteOfWeek(1, 22 * 60), NONE,
+                new String[] { monday });
+        assertTransition(transitions[4], minuteOfWeek(2, 8 * 60), NONE,
+                new String[] { tuesday });
+        assertTransition(transitions[7], minuteOfWeek(6, 12 * 60), new String[] { weekend },
+                NONE);
+    }
+
+    @Test
+    public void testOvernightWindowClosesNextDay() {
+        final String id = new ScheduleWindow(ScheduleWindow.MONDAY, 22 * 60, 6 * 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions =
+                ProfileScheduler.buildTransitions(Collections.singletonList(id));
+
+        assertEquals(2, transitions.length);
+        assertTransition(transitions[0], minuteOfWeek(1, 22 * 60), NONE, new String[] { id });
+        assertTransition(transitions[1], minuteOfWeek(2, 6 * 60), new String[] { id }, NONE);
+    }
+
+    @Test
+    public void testSaturdayOvernightWindowClosesOnSunday() {
+        final String id = new ScheduleWindow(ScheduleWindow.SATURDAY, 23 * 60, 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions =
+                ProfileScheduler.buildTransitions(Collections.singletonList(id));
+
+        assertEquals(2, transitions.length);
+        assertTransition(transitions[0], minuteOfWeek(0, 60), new String[] { id }, NONE);
+        assertTransition(transitions[1], minuteOfWeek(6, 23 * 60), NONE, new String[] { id });
+    }
+
+    @Test
+    public void testAdjacentWindowsShareTransition() {
+        final String day = new ScheduleWindow(ScheduleWindow.MONDAY, 9 * 60, 17 * 60)
+                .toTriggerId();
+        final String evening = new ScheduleWindow(ScheduleWindow.MONDAY, 17 * 60, 20 * 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions =
+                ProfileScheduler.buildTransitions(Arrays.asList(evening, day));
+
+        assertEquals(3, transitions.length);
+        assertTransition(transitions[1], minuteOfWeek(1, 17 * 60), new String[] { day },
+                new String[] { evening });
+    }
+
+    @Test
+    public void testInvalidIdsAreSkipped() {
+        final String id = new ScheduleWindow(ScheduleWindow.EVERY_DAY, 9 * 60, 17 * 60)
+                .toTriggerId();
+        ProfileScheduler.Transition[] transitions = ProfileScheduler.buildTransitions(
+                Arrays.asList("schedule:0:60-120", id, "00:11:22:33:44:55"));
+
+        assertEquals(14, transitions.length);
+        for (ProfileScheduler.Transition transition : transitions) {
+            assertEquals(1, transition.closing.length + transition.opening.length);
+        }
+        assertEquals(0, ProfileScheduler.buildTransitions(
+                Collections.singletonList("schedule:1:60-60")).length);
+    }
+
+    private static int minuteOfWeek(int day, int minuteOfDay) {
+        return day * MINUTES_PER_DAY + minuteOfDay;
+    }
+
+    private static void assertTransition(ProfileScheduler.Transition transition,
+            int minuteOfWeek, String[] closing, String[] opening) {
+        assertEquals(minuteOfWeek, transition.minuteOfWeek);
+        assertArrayEquals(closing, transition.closing);
+        assertArrayEquals(opening, transition.opening);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import android.app.NotificationGroup;
+import android.content.Context;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import mokee.app.Profile;
+import mokee.app.Profile.ProfileTrigger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileStoreTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Profile home = new Profile("Home");
+        home.setTrigger(Profile.TriggerType.WIFI, "HomeWifi",
+                Profile.TriggerState.ON_CONNECT, "HomeWifi");
+        Profile work = new Profile("Work");
+        work.setConditionalType();
+        final String schedule = new Profile.ScheduleWindow(
+                Profile.ScheduleWindow.MONDAY, 9 * 60, 17 * 60).toTriggerId();
+        work.setTrigger(Profile.TriggerType.SCHEDULE, schedule,
+                Profile.TriggerState.ON_DISCONNECT, "Office hours");
+        NotificationGroup group = new NotificationGroup("Friends", -1, UUID.randomUUID());
+
+        ProfileTrigger[] triggers = new ProfileTrigger[] {
+            new ProfileTrigger(Profile.TriggerType.BLUETOOTH, "00:11:22:33:44:55",
+                    Profile.TriggerState.ON_CONNECT, "Car")
+        };
+        ProfileStore.Entry entry = new ProfileStore.Entry(UUID.randomUUID(), null, "Undecoded",
+                Profile.Type.TOGGLE, triggers,
+                "<profile>undecoded</profile>".getBytes(StandardCharsets.UTF_8));
+
+        ProfileStore.Contents contents = roundTrip(work.getUuid(),
+                Arrays.asList(home, work), Collections.singletonList(entry),
+                Collections.singletonList(toBody(group)));
+
+        assertEquals(work.getUuid(), contents.activeUuid);
+        assertEquals(3, contents.profiles.size());
+        assertEquals(1, contents.groups.size());
+
+        ProfileStore.Entry homeEntry = contents.profiles.get(0);
+        assertEquals(home.getUuid(), homeEntry.uuid);
+        assertNull(homeEntry.nameRes);
+        assertEquals("Home", homeEntry.getName(mContext));
+        assertEquals(Profile.Type.TOGGLE, homeEntry.profileType);
+        assertEquals(1, homeEntry.triggers.length);
+        assertEquals(Profile.TriggerType.WIFI, homeEntry.triggers[0].getType());
+        assertEquals("HomeWifi", homeEntry.triggers[0].getId());
+        assertEquals(Profile.TriggerState.ON_CONNECT, homeEntry.triggers[0].getState());
+        assertEquals("HomeWifi", homeEntry.triggers[0].getName());
+
+        ProfileStore.Entry workEntry = contents.profiles.get(1);
+        assertEquals(work.getUuid(), workEntry.uuid);
+        assertEquals(Profile.Type.CONDITIONAL, workEntry.profileType);
+        assertEquals(schedule, workEntry.triggers[0].getId());
+        assertEquals("Office hours", workEntry.triggers[0].getName());
+
+        // Undecoded profiles are copied as they are
+        ProfileStore.Entry copied = contents.profiles.get(2);
+        assertEquals(entry.uuid, copied.uuid);
+        assertEquals("Undecoded", copied.name);
+        assertEquals(Profile.TriggerType.BLUETOOTH, copied.triggers[0].getType());
+        assertEquals("Car", copied.triggers[0].getName());
+        assertArrayEquals(entry.body, copied.body);
+
+        Profile decoded = ProfileStore.decodeProfile(workEntry, mContext);
+        assertEquals(work.getUuid(), decoded.getUuid());
+        assertEquals("Work", decoded.getName());
+        assertEquals(Profile.Type.CONDITIONAL, decoded.getProfileType());
+        assertEquals(Profile.TriggerState.ON_DISCONNECT,
+                decoded.getTriggerState(Profile.TriggerType.SCHEDULE, schedule));
+
+        NotificationGroup decodedGroup = ProfileStore.decodeGroup(contents.groups.get(0),
+                mContext);
+        assertEquals(group.getUuid(), decodedGroup.getUuid());
+        assertEquals("Friends", decodedGroup.getName());
+    }
+
+    @Test
+    public void testEmptyStore() throws Exception {
+        final UUID active = UUID.randomUUID();
+        ProfileStore.Contents contents = roundTrip(active, Collections.<Profile>emptyList(),
+                Collections.<ProfileStore.Entry>emptyList(),
+                Collections.<byte[]>emptyList());
+        assertEquals(active, contents.activeUuid);
+        assertEquals(0, contents.profiles.size());
+        assertEquals(0, contents.groups.size());
+    }
+
+    @Test
+    public void testRejectsForeignFile() throws Exception {
+        byte[] store = write(new Profile("Home"));
+        store[0] ^= 0xff;
+        assertUnreadable(store);
+    }
+
+    @Test
+    public void testRejectsOtherVersions() throws Exception {
+        byte[] store = write(new Profile("Home"));
+        // The version follows the magic
+        final int version = ((store[4] & 0xff) << 24) | ((store[5] & 0xff) << 16)
+                | ((store[6] & 0xff) << 8) | (store[7] & 0xff);
+        for (int other : new int[] { version - 1, version + 1 }) {
+            store[4] = (byte) (other >>> 24);
+            store[5] = (byte) (other >>> 16);
+            store[6] = (byte) (other >>> 8);
+            store[7] = (byte) other;
+            assertUnreadable(store);
+        }
+    }
+
+    @Test
+    public void testRejectsTruncatedStore() throws Exception {
+        byte[] store = write(new Profile("Home"));
+        assertUnreadable(Arrays.copyOf(store, store.length - 1));
+    }
+
+    @Test
+    public void testDecodeRejectsOtherRootTag() throws Exception {
+        ProfileStore.Entry entry = new ProfileStore.Entry(UUID.randomUUID(), null, "Group",
+                Profile.Type.TOGGLE, new ProfileTrigger[0],
+                "<notificationGroup name=\"Group\" />".getBytes(StandardCharsets.UTF_8));
+        try {
+            ProfileStore.decodeProfile(entry, mContext);
+            fail("Decoded a notification group as a profile");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private byte[] write(Profile profile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ProfileStore.write(out, mContext, profile.getUuid(), Collections.singletonList(profile),
+                Collections.<ProfileStore.Entry>emptyList(),
+                Collections.<byte[]>emptyList());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private ProfileStore.Contents roundTrip(UUID activeUuid, Collection<Profile> profiles,
+            Collection<ProfileStore.Entry> entries, Collection<byte[]> groups)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ProfileStore.write(out, mContext, activeUuid, profiles, entries, groups);
+        out.flush();
+        return ProfileStore.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private byte[] toBody(NotificationGroup group) {
+        StringBuilder builder = new StringBuilder();
+        group.getXmlString(builder, mContext);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertUnreadable(byte[] store) {
+        try {
+            ProfileStore.read(new DataInputStream(new ByteArrayInputStream(store)));
+            fail("Read an invalid store");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}